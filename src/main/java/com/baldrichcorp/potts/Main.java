@@ -1,17 +1,20 @@
 package com.baldrichcorp.potts;
 
+import com.baldrichcorp.potts.feature.PointInTimeFeatureSweep;
 import com.baldrichcorp.potts.index.MapMultiCriteriaRangeQueryIndex;
 import com.baldrichcorp.potts.index.MultiCriteriaRangeQueryIndex;
-import com.baldrichcorp.potts.index.query.IndexKeySet;
 import com.baldrichcorp.potts.index.query.QueryRange;
+import com.baldrichcorp.potts.index.query.RelativeRange;
 import com.baldrichcorp.potts.io.CSVConsumer;
 import com.baldrichcorp.potts.io.CSVProducer;
+import com.baldrichcorp.potts.io.CSVSink;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,10 +34,10 @@ public class Main {
         final String NAME_PLUS_EMAIL_INDEX = "NaEm";
         final String EMAIL_PLUS_NAME_INDEX = "EmNa";
 
-        index.define(NAME_INDEX, p -> IndexKeySet.of(p.getName()));
-        index.define(EMAIL_INDEX, p -> IndexKeySet.of(p.getEmail()));
-        index.define(NAME_PLUS_EMAIL_INDEX, p -> IndexKeySet.of(p.getName(), p.getEmail()));
-        index.define(EMAIL_PLUS_NAME_INDEX, p -> IndexKeySet.of(p.getEmail(), p.getName()));
+        index.define(NAME_INDEX, (p, keys) -> keys.add(p.getName()));
+        index.define(EMAIL_INDEX, (p, keys) -> keys.add(p.getEmail()));
+        index.define(NAME_PLUS_EMAIL_INDEX, (p, keys) -> keys.add(p.getName()).add(p.getEmail()));
+        index.define(EMAIL_PLUS_NAME_INDEX, (p, keys) -> keys.add(p.getEmail()).add(p.getName()));
 
         Instant start = Instant.now();
         consumer.consume().forEach(p -> index.add(p, p.pos));
@@ -76,6 +79,23 @@ public class Main {
 
         System.out.printf("Queried = %s\n", Duration.between(start, Instant.now()));
         new CSVProducer().produce(response, "output.csv");
+
+        MultiCriteriaRangeQueryIndex<Person, Integer> pointInTime = new MapMultiCriteriaRangeQueryIndex<>();
+        pointInTime.define(NAME_INDEX, (p, keys) -> keys.add(p.getName()));
+        pointInTime.define(EMAIL_INDEX, (p, keys) -> keys.add(p.getEmail()));
+        pointInTime.define(NAME_PLUS_EMAIL_INDEX, (p, keys) -> keys.add(p.getName()).add(p.getEmail()));
+
+        start = Instant.now();
+        new PointInTimeFeatureSweep<Person, Integer>(pointInTime, Person::getPos,
+                RelativeRange.of("last3", p -> p - 3, p -> p - 1), RelativeRange.of("last10", p -> p - 10, p -> p - 1))
+                .query(NAME_INDEX, EMAIL_INDEX)
+                .count(NAME_PLUS_EMAIL_INDEX)
+                .describedBy(p -> Collections.singletonMap("pos", p.getPos()))
+                .run(new CSVConsumer<>(ClassLoader.getSystemClassLoader().getResourceAsStream("persons.csv"),
+                        ',', record -> Person.of(record.get("name"),
+                        record.get("email"),
+                        Integer.valueOf(record.get("pos")))), new CSVSink("features.csv"));
+        System.out.printf("Swept = %s\n", Duration.between(start, Instant.now()));
     }
 
     @Getter
@@ -0,0 +1,72 @@
+package com.baldrichcorp.potts.bench;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the garbage collections that happen between {@link #reset()} calls: how many, their total duration
+ * and the longest one.
+ *
+ * @author Santiago Baldrich.
+ */
+public class GcMonitor implements NotificationListener, AutoCloseable {
+
+    private final AtomicLong collections = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public GcMonitor() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter)
+                ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+            return;
+        long duration = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                .getGcInfo().getDuration();
+        collections.incrementAndGet();
+        totalMillis.addAndGet(duration);
+        maxMillis.accumulateAndGet(duration, Math::max);
+    }
+
+    public void reset() {
+        collections.set(0);
+        totalMillis.set(0);
+        maxMillis.set(0);
+    }
+
+    public long getCollections() {
+        return collections.get();
+    }
+
+    public long getTotalMillis() {
+        return totalMillis.get();
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    @Override
+    public void close() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            try {
+                if (gc instanceof NotificationEmitter)
+                    ((NotificationEmitter) gc).removeNotificationListener(this);
+            } catch (ListenerNotFoundException ignored) {
+            }
+        }
+    }
+}
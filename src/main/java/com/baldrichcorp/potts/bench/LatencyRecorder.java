@@ -0,0 +1,47 @@
+package com.baldrichcorp.potts.bench;
+
+import java.util.Arrays;
+
+/**
+ * Records latency samples (in nanoseconds) and computes percentiles over them.
+ *
+ * @author Santiago Baldrich.
+ */
+public class LatencyRecorder {
+
+    private long[] samples;
+    private int size;
+    private boolean sorted;
+
+    public LatencyRecorder(int expectedSamples) {
+        samples = new long[Math.max(16, expectedSamples)];
+    }
+
+    public void record(long nanos) {
+        if (size == samples.length)
+            samples = Arrays.copyOf(samples, size * 2);
+        samples[size++] = nanos;
+        sorted = false;
+    }
+
+    public int count() {
+        return size;
+    }
+
+    /**
+     * Get the value below which the given fraction of the samples fall.
+     *
+     * @param p the fraction, in <em>[0, 1]</em>.
+     * @return the percentile in nanoseconds, 0 if there are no samples.
+     */
+    public long percentile(double p) {
+        if (size == 0)
+            return 0;
+        if (!sorted) {
+            Arrays.sort(samples, 0, size);
+            sorted = true;
+        }
+        int rank = (int) Math.ceil(p * size) - 1;
+        return samples[Math.max(0, Math.min(size - 1, rank))];
+    }
+}
@@ -0,0 +1,155 @@
+package com.baldrichcorp.potts.bench;
+
+import com.baldrichcorp.potts.Main.Person;
+import com.baldrichcorp.potts.index.MapMultiCriteriaRangeQueryIndex;
+import com.baldrichcorp.potts.index.MultiCriteriaRangeQueryIndex;
+import com.baldrichcorp.potts.index.query.QueryRange;
+import com.baldrichcorp.potts.io.CSVConsumer;
+import com.baldrichcorp.potts.io.CSVProducer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load test of the {@code CSVConsumer} &rarr; {@code MultiCriteriaRangeQueryIndex} &rarr;
+ * {@code CSVProducer} pipeline. A synthetic dataset is generated, ingested and queried at the requested rates, and
+ * the throughput, latency percentiles, heap usage and garbage collections of every phase are reported.
+ * <p>
+ * Parameters are given as <em>key=value</em> arguments, for example:
+ * <pre>
+ * rows=1000000 names=100000 emails=200000 skew=1.1 maxPosition=86400 positions=SEQUENTIAL
+ * ingestRate=0 queries=100000 queryRate=20000 ranges=60,3600,86400 seed=42 output=load.csv
+ * </pre>
+ * Rates are in operations per second, 0 means unbounded. Latencies are measured from the time each operation was
+ * scheduled to start, so a stalled pipeline shows up in the percentiles instead of being hidden by it.
+ *
+ * @author Santiago Baldrich.
+ */
+public class LoadHarness {
+
+    private static final String NAME_INDEX = "Na";
+    private static final String EMAIL_INDEX = "Em";
+    private static final String NAME_PLUS_EMAIL_INDEX = "NaEm";
+    private static final String EMAIL_PLUS_NAME_INDEX = "EmNa";
+
+    public static void main(String[] args) throws IOException {
+        Properties config = new Properties();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            config.setProperty(kv[0], kv.length > 1 ? kv[1] : "");
+        }
+        int rows = Integer.parseInt(config.getProperty("rows", "1000000"));
+        int maxPosition = Integer.parseInt(config.getProperty("maxPosition", "86400"));
+        SyntheticDataset dataset = SyntheticDataset.builder()
+                .rows(rows)
+                .names(Integer.parseInt(config.getProperty("names", "100000")))
+                .emails(Integer.parseInt(config.getProperty("emails", "200000")))
+                .skew(Double.parseDouble(config.getProperty("skew", "1.1")))
+                .maxPosition(maxPosition)
+                .positions(SyntheticDataset.PositionDistribution.valueOf(config.getProperty("positions", "SEQUENTIAL")))
+                .seed(Long.parseLong(config.getProperty("seed", "42")))
+                .build();
+        int ingestRate = Integer.parseInt(config.getProperty("ingestRate", "0"));
+        int queries = Integer.parseInt(config.getProperty("queries", String.valueOf(Math.min(rows, 100000))));
+        int queryRate = Integer.parseInt(config.getProperty("queryRate", "0"));
+        List<QueryRange<Integer>> ranges = new ArrayList<>();
+        for (String width : config.getProperty("ranges", "60,3600,86400").split(","))
+            ranges.add(QueryRange.of("last" + width.trim(), maxPosition - Integer.parseInt(width.trim()) + 1, maxPosition));
+        String output = config.getProperty("output", "load.csv");
+
+        Path data = Files.createTempFile("potts-load", ".csv");
+        data.toFile().deleteOnExit();
+        long start = System.nanoTime();
+        dataset.write(data);
+        System.out.printf("Generated %s in %d ms%n", dataset, (System.nanoTime() - start) / 1_000_000);
+
+        MultiCriteriaRangeQueryIndex<Person, Integer> index = new MapMultiCriteriaRangeQueryIndex<>();
+        index.define(NAME_INDEX, (p, keys) -> keys.add(p.getName()));
+        index.define(EMAIL_INDEX, (p, keys) -> keys.add(p.getEmail()));
+        index.define(NAME_PLUS_EMAIL_INDEX, (p, keys) -> keys.add(p.getName()).add(p.getEmail()));
+        index.define(EMAIL_PLUS_NAME_INDEX, (p, keys) -> keys.add(p.getEmail()).add(p.getName()));
+
+        List<String> queryIndices = Arrays.asList(NAME_INDEX, EMAIL_INDEX);
+        List<String> countIndices = Arrays.asList(NAME_PLUS_EMAIL_INDEX);
+        Map<String, List<Object>> response = new HashMap<>();
+
+        try (GcMonitor gc = new GcMonitor()) {
+            try (InputStream in = Files.newInputStream(data)) {
+                run("ingest", persons(in).iterator(), rows, ingestRate, gc, p -> index.add(p, p.getPos()));
+            }
+            try (InputStream in = Files.newInputStream(data)) {
+                run("query", persons(in).limit(queries).iterator(), queries, queryRate, gc, p -> {
+                    collect(response, index.query(p, queryIndices, ranges).getResponseMap());
+                    collect(response, index.count(p, countIndices, ranges).getResponseMap());
+                });
+            }
+            gc.reset();
+            start = System.nanoTime();
+            new CSVProducer().produce(new HashMap<>(response), Paths.get(output).toString());
+            report("output", 1, System.nanoTime() - start, null, gc);
+        }
+    }
+
+    private static Stream<Person> persons(InputStream in) {
+        return new CSVConsumer<>(in, ',', record -> Person.of(record.get("name"), record.get("email"),
+                Integer.valueOf(record.get("pos")))).consume();
+    }
+
+    private static void collect(Map<String, List<Object>> response, Map<String, Integer> row) {
+        row.forEach((column, value) -> response.computeIfAbsent(column, c -> new ArrayList<>()).add(value));
+    }
+
+    /**
+     * Feed the elements to the operation at the given rate, recording the latency of every call.
+     */
+    private static void run(String phase, Iterator<Person> elements, int expected, int rate, GcMonitor gc, Consumer<Person> operation) {
+        LatencyRecorder latencies = new LatencyRecorder(expected);
+        long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+        System.gc();
+        gc.reset();
+        long start = System.nanoTime();
+        long scheduled = start;
+        while (elements.hasNext()) {
+            Person p = elements.next();
+            if (interval > 0) {
+                scheduled += interval;
+                long wait;
+                while ((wait = scheduled - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+            } else {
+                scheduled = System.nanoTime();
+            }
+            operation.accept(p);
+            latencies.record(System.nanoTime() - scheduled);
+        }
+        report(phase, latencies.count(), System.nanoTime() - start, latencies, gc);
+    }
+
+    private static void report(String phase, int operations, long elapsed, LatencyRecorder latencies, GcMonitor gc) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        System.out.printf("%-7s ops=%d time=%dms throughput=%.0f ops/s%n", phase, operations, elapsed / 1_000_000,
+                operations * 1e9 / Math.max(1, elapsed));
+        if (latencies != null) {
+            System.out.printf("        latency us p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                    latencies.percentile(0.5) / 1e3, latencies.percentile(0.9) / 1e3, latencies.percentile(0.99) / 1e3,
+                    latencies.percentile(0.999) / 1e3, latencies.percentile(1) / 1e3);
+        }
+        System.out.printf("        heap used=%dMB committed=%dMB gc count=%d total=%dms max pause=%dms%n",
+                heap.getUsed() >> 20, heap.getCommitted() >> 20, gc.getCollections(), gc.getTotalMillis(), gc.getMaxMillis());
+    }
+}
@@ -0,0 +1,79 @@
+package com.baldrichcorp.potts.bench;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Description of a synthetic dataset with the same layout as {@code persons.csv} (<em>name,email,pos</em>). Names
+ * and emails are drawn from Zipf distributions with the given cardinalities and skew, so a few hot keys concentrate
+ * most of the occurrences while most keys appear only a handful of times. The same description and seed always
+ * produce the same file.
+ *
+ * @author Santiago Baldrich.
+ */
+@Builder
+@Getter
+@ToString
+public class SyntheticDataset {
+
+    private final int rows;
+    private final int names;
+    private final int emails;
+    private final double skew;
+    private final int maxPosition;
+    private final PositionDistribution positions;
+    private final long seed;
+
+    /**
+     * Write the dataset to a csv file.
+     *
+     * @param path the route to write the file into.
+     * @throws IOException if the file can't be written.
+     */
+    public void write(Path path) throws IOException {
+        Random random = new Random(seed);
+        ZipfSampler nameSampler = new ZipfSampler(names, skew, random);
+        ZipfSampler emailSampler = new ZipfSampler(emails, skew, random);
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.append("name,email,pos\n");
+            for (int i = 0; i < rows; i++) {
+                writer.append("name").append(String.valueOf(nameSampler.next())).append(',')
+                        .append("email").append(String.valueOf(emailSampler.next())).append(',')
+                        .append(String.valueOf(positions.next(i, rows, maxPosition, random))).append('\n');
+            }
+        }
+    }
+
+    /**
+     * The way positions are assigned to rows.
+     */
+    public enum PositionDistribution {
+        /**
+         * Positions drawn uniformly from <em>[1, maxPosition]</em>.
+         */
+        UNIFORM {
+            @Override
+            int next(int row, int rows, int maxPosition, Random random) {
+                return 1 + random.nextInt(maxPosition);
+            }
+        },
+        /**
+         * Positions that increase steadily with the row number, like timestamps of an event log.
+         */
+        SEQUENTIAL {
+            @Override
+            int next(int row, int rows, int maxPosition, Random random) {
+                return 1 + (int) ((long) row * maxPosition / rows);
+            }
+        };
+
+        abstract int next(int row, int rows, int maxPosition, Random random);
+    }
+}
@@ -0,0 +1,43 @@
+package com.baldrichcorp.potts.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples ranks in <em>[0, n)</em> following a Zipf distribution: rank <em>k</em> is drawn with a probability
+ * proportional to <em>1 / (k + 1)^s</em>. A skew of 0 gives a uniform distribution.
+ *
+ * @author Santiago Baldrich.
+ */
+public class ZipfSampler {
+
+    private final double[] cumulative;
+    private final Random random;
+
+    /**
+     * Initializes a new {@code ZipfSampler} with the given parameters.
+     *
+     * @param n      the number of distinct ranks.
+     * @param skew   the exponent of the distribution.
+     * @param random the source of randomness.
+     */
+    public ZipfSampler(int n, double skew, Random random) {
+        this.random = random;
+        this.cumulative = new double[n];
+        double total = 0;
+        for (int k = 0; k < n; k++) {
+            total += 1 / Math.pow(k + 1, skew);
+            cumulative[k] = total;
+        }
+        for (int k = 0; k < n; k++)
+            cumulative[k] /= total;
+    }
+
+    /**
+     * @return the next rank.
+     */
+    public int next() {
+        int k = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(k < 0 ? -k - 1 : k, cumulative.length - 1);
+    }
+}
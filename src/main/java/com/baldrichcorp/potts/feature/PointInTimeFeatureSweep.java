@@ -0,0 +1,133 @@
+package com.baldrichcorp.potts.feature;
+
+import com.baldrichcorp.potts.index.MultiCriteriaRangeQueryIndex;
+import com.baldrichcorp.potts.index.query.QueryRange;
+import com.baldrichcorp.potts.index.query.RelativeRange;
+import com.baldrichcorp.potts.io.Consumer;
+import com.baldrichcorp.potts.io.Sink;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Computes point-in-time features for every element of a dataset in a single sweep. Elements are sorted by position
+ * and the index is filled incrementally, every element is scored against windows relative to its own position
+ * <b>before</b> it, or any other element at the same position, is added. The features of an element therefore only
+ * count events that happened strictly earlier, which is what training data needs to be free of leakage.
+ * <p>
+ * Rows are written to the sink as soon as they are computed, in position order.
+ *
+ * @param <T> the type of the elements to score.
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ */
+@Slf4j
+public class PointInTimeFeatureSweep<T, K extends Comparable<? super K>> {
+
+    private final MultiCriteriaRangeQueryIndex<T, K> index;
+    private final Function<T, K> position;
+    private final List<RelativeRange<K>> ranges;
+
+    private List<String> queryIndices = Collections.emptyList();
+    private List<String> countIndices = Collections.emptyList();
+    private Function<T, Map<String, ?>> description = t -> Collections.emptyMap();
+
+    /**
+     * Initializes a new {@code PointInTimeFeatureSweep} with the given parameters.
+     *
+     * @param index    an index where all the sub-indices used by the features have been defined. It should be empty.
+     * @param position function that obtains the position of an element.
+     * @param ranges   the windows, relative to the position of each element, on which to compute the features.
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public PointInTimeFeatureSweep(MultiCriteriaRangeQueryIndex<T, K> index, Function<T, K> position, RelativeRange<K>... ranges) {
+        this.index = index;
+        this.position = position;
+        this.ranges = Arrays.asList(ranges);
+    }
+
+    /**
+     * Set the sub-indices on which to perform queries for every element.
+     *
+     * @see MultiCriteriaRangeQueryIndex#query(Object, List, List)
+     * @param indexIds the ids of the sub-indices.
+     * @return this instance.
+     */
+    public PointInTimeFeatureSweep<T, K> query(String... indexIds) {
+        this.queryIndices = Arrays.asList(indexIds);
+        return this;
+    }
+
+    /**
+     * Set the sub-indices on which to perform counts for every element.
+     *
+     * @see MultiCriteriaRangeQueryIndex#count(Object, List, List)
+     * @param indexIds the ids of the sub-indices.
+     * @return this instance.
+     */
+    public PointInTimeFeatureSweep<T, K> count(String... indexIds) {
+        this.countIndices = Arrays.asList(indexIds);
+        return this;
+    }
+
+    /**
+     * Set a function that obtains the columns that identify an element in the output (an id, its position, etc.).
+     *
+     * @param description the function.
+     * @return this instance.
+     */
+    public PointInTimeFeatureSweep<T, K> describedBy(Function<T, Map<String, ?>> description) {
+        this.description = description;
+        return this;
+    }
+
+    /**
+     * Sweep over all the elements of the source, writing one row per element to the sink. The sink is closed when
+     * the sweep is over.
+     *
+     * @param source the elements to score.
+     * @param sink   where to write the features of every element.
+     * @return the number of elements processed.
+     */
+    public int run(Consumer<T> source, Sink<? super Map<String, Object>> sink) {
+        List<T> elements = source.consume().collect(Collectors.toCollection(ArrayList::new));
+        elements.sort(Comparator.comparing(position));
+        try {
+            int from = 0;
+            while (from < elements.size()) {
+                K pos = position.apply(elements.get(from));
+                int to = from + 1;
+                while (to < elements.size() && position.apply(elements.get(to)).compareTo(pos) == 0)
+                    to++;
+                List<QueryRange<K>> absolute = ranges.stream().map(r -> r.at(pos)).collect(Collectors.toList());
+                for (int i = from; i < to; i++)
+                    sink.accept(features(elements.get(i), absolute));
+                for (int i = from; i < to; i++)
+                    index.add(elements.get(i), pos);
+                from = to;
+            }
+        } finally {
+            sink.close();
+        }
+        log.debug("Swept {} elements", elements.size());
+        return elements.size();
+    }
+
+    private Map<String, Object> features(T t, List<QueryRange<K>> absolute) {
+        Map<String, Object> row = new HashMap<>(description.apply(t));
+        if (!queryIndices.isEmpty())
+            row.putAll(index.query(t, queryIndices, absolute).getResponseMap());
+        if (!countIndices.isEmpty())
+            row.putAll(index.count(t, countIndices, absolute).getResponseMap());
+        return row;
+    }
+}
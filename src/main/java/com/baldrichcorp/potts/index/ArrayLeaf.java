@@ -0,0 +1,247 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+
+import java.util.Arrays;
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * {@code Leaf} of an element observed a few times. Positions are kept in a sorted array, so range counts are two
+ * binary searches, and measures in a parallel array that is only allocated once a measured occurrence is added.
+ * Leaves that outgrow {@link #CAPACITY} occurrences are promoted to a {@code PositionTree}.
+ *
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ */
+final class ArrayLeaf<K extends Comparable<? super K>> implements Leaf<K> {
+
+    /**
+     * Maximum number of occurrences held in arrays. Copying arrays this small on every write is cheaper than
+     * copying the path of a tree.
+     */
+    static final int CAPACITY = 32;
+
+    private static final ArrayLeaf<?> EMPTY = new ArrayLeaf<>(new Comparable<?>[0], null);
+
+    private final Comparable<?>[] positions;
+    private final double[] measures;
+
+    private ArrayLeaf(Comparable<?>[] positions, double[] measures) {
+        this.positions = positions;
+        this.measures = measures;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K extends Comparable<? super K>> ArrayLeaf<K> empty() {
+        return (ArrayLeaf<K>) EMPTY;
+    }
+
+    static <K extends Comparable<? super K>> ArrayLeaf<K> of(K first, double firstMeasure, K second, double secondMeasure) {
+        boolean measured = !Double.isNaN(firstMeasure) || !Double.isNaN(secondMeasure);
+        return new ArrayLeaf<>(new Comparable<?>[]{first, second}, measured ? new double[]{firstMeasure, secondMeasure} : null);
+    }
+
+    /**
+     * Copy the occurrences of a leaf into arrays.
+     *
+     * @param leaf a leaf with at most {@link #CAPACITY} occurrences.
+     * @return an {@code ArrayLeaf} with the same occurrences.
+     */
+    static <K extends Comparable<? super K>> ArrayLeaf<K> of(Leaf<K> leaf) {
+        Comparable<?>[] positions = new Comparable<?>[leaf.size()];
+        double[] measures = new double[positions.length];
+        int[] i = {0};
+        leaf.forEach((pos, measure) -> {
+            measures[i[0]] = measure;
+            positions[i[0]++] = pos;
+        });
+        return of(positions, measures);
+    }
+
+    /**
+     * Wrap sorted arrays of occurrences.
+     *
+     * @param positions at most {@link #CAPACITY} sorted positions, the array is not copied.
+     * @param measures  the measures of each position, dropped if none of them is measured.
+     * @return an {@code ArrayLeaf} with the given occurrences.
+     */
+    static <K extends Comparable<? super K>> ArrayLeaf<K> of(Comparable<?>[] positions, double[] measures) {
+        for (double measure : measures) {
+            if (!Double.isNaN(measure))
+                return new ArrayLeaf<>(positions, measures);
+        }
+        return new ArrayLeaf<>(positions, null);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Leaf<K> with(K pos, double measure) {
+        int size = positions.length;
+        if (size == 0)
+            return new SingletonLeaf<>(pos, measure);
+        if (size == CAPACITY) {
+            PositionTree<K> tree = PositionTree.<K> empty().with(pos, measure);
+            for (int i = 0; i < size; i++)
+                tree = tree.with(position(i), measure(i));
+            return tree;
+        }
+        int at = upperBound(pos);
+        Comparable<?>[] p = new Comparable<?>[size + 1];
+        System.arraycopy(positions, 0, p, 0, at);
+        System.arraycopy(positions, at, p, at + 1, size - at);
+        p[at] = pos;
+        double[] m = null;
+        if (measures != null || !Double.isNaN(measure)) {
+            m = new double[size + 1];
+            if (measures == null) {
+                Arrays.fill(m, UNMEASURED);
+            } else {
+                System.arraycopy(measures, 0, m, 0, at);
+                System.arraycopy(measures, at, m, at + 1, size - at);
+            }
+            m[at] = measure;
+        }
+        return new ArrayLeaf<>(p, m);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Leaf<K> without(K pos) {
+        int at = find(pos);
+        if (at < 0)
+            return this;
+        int size = positions.length;
+        if (size == 2)
+            return new SingletonLeaf<>(position(1 - at), measure(1 - at));
+        Comparable<?>[] p = new Comparable<?>[size - 1];
+        System.arraycopy(positions, 0, p, 0, at);
+        System.arraycopy(positions, at + 1, p, at, size - at - 1);
+        double[] m = null;
+        if (measures != null) {
+            m = new double[size - 1];
+            System.arraycopy(measures, 0, m, 0, at);
+            System.arraycopy(measures, at + 1, m, at, size - at - 1);
+        }
+        return new ArrayLeaf<>(p, m);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public double measureAt(K pos) {
+        int at = find(pos);
+        return at < 0 ? UNMEASURED : measure(at);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int size() {
+        return positions.length;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long footprint() {
+        return 48 + 20L * positions.length + (measures == null ? 0 : 16 + 8L * measures.length);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int count(K left, K right) {
+        if (left.compareTo(right) > 0)
+            return 0;
+        return upperBound(right) - lowerBound(left);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(K left, K right) {
+        if (measures == null || left.compareTo(right) > 0)
+            return Aggregate.EMPTY;
+        int count = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = lowerBound(left), end = upperBound(right); i < end; i++) {
+            double m = measures[i];
+            if (Double.isNaN(m))
+                continue;
+            count++;
+            sum += m;
+            min = Math.min(min, m);
+            max = Math.max(max, m);
+        }
+        return count == 0 ? Aggregate.EMPTY : new Aggregate(count, sum, min, max);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void forEach(ObjDoubleConsumer<? super K> action) {
+        for (int i = 0; i < positions.length; i++)
+            action.accept(position(i), measure(i));
+    }
+
+    @SuppressWarnings("unchecked")
+    private K position(int i) {
+        return (K) positions[i];
+    }
+
+    private double measure(int i) {
+        return measures == null ? UNMEASURED : measures[i];
+    }
+
+    /**
+     * @return the index of the first occurrence at the given position or a negative number if there is none.
+     */
+    private int find(K pos) {
+        int at = lowerBound(pos);
+        return at < positions.length && position(at).compareTo(pos) == 0 ? at : -1;
+    }
+
+    /**
+     * @return the index of the first position that is not less than the given one.
+     */
+    private int lowerBound(K pos) {
+        int lo = 0;
+        int hi = positions.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (position(mid).compareTo(pos) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the index of the first position that is greater than the given one.
+     */
+    private int upperBound(K pos) {
+        int lo = 0;
+        int hi = positions.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (position(mid).compareTo(pos) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,275 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+
+import java.util.Arrays;
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Compressed {@code Leaf} for large leaves that are no longer written. Positions are encoded as longs by a
+ * {@code PositionCodec} and split into sorted blocks of up to {@link #BLOCK_SIZE} positions. Each block stores its
+ * first position and the deltas between consecutive positions as varints, which for steadily increasing timestamps
+ * takes one or two bytes per position instead of a tree node and a boxed position.
+ * <p>
+ * Every block also keeps its first and last positions, the number of positions before it and the aggregate of its
+ * measures, so range counts and aggregates only decode the (at most two) blocks that straddle the bounds of the
+ * range and skip over the rest.
+ * <p>
+ * Compressed leaves are read-only: any write decompresses the leaf back into a {@code PositionTree} (or an
+ * {@code ArrayLeaf} if it is small), which is compressed again by the next compaction that finds it idle.
+ *
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ * @see MultiSetRangeQueryIndex#compact(PositionCodec, int, long)
+ */
+final class BlockLeaf<K extends Comparable<? super K>> implements Leaf<K> {
+
+    static final int BLOCK_SIZE = 128;
+
+    private final PositionCodec<K> codec;
+    private final long[] firsts;
+    private final long[] lasts;
+    private final int[] offsets;
+    private final byte[][] deltas;
+    private final double[][] measures;
+    private final Aggregate[] aggregates;
+
+    private BlockLeaf(PositionCodec<K> codec, long[] firsts, long[] lasts, int[] offsets, byte[][] deltas,
+                      double[][] measures, Aggregate[] aggregates) {
+        this.codec = codec;
+        this.firsts = firsts;
+        this.lasts = lasts;
+        this.offsets = offsets;
+        this.deltas = deltas;
+        this.measures = measures;
+        this.aggregates = aggregates;
+    }
+
+    /**
+     * Compress a leaf.
+     *
+     * @param leaf  the leaf to compress.
+     * @param codec the codec used to encode the positions, positions are decoded from their encoded values so the
+     *              codec should be lossless.
+     * @param <K>   the type of the positions.
+     * @return a {@code BlockLeaf} with the occurrences of <em>leaf</em>.
+     */
+    static <K extends Comparable<? super K>> BlockLeaf<K> of(Leaf<K> leaf, PositionCodec<K> codec) {
+        int size = leaf.size();
+        if (size == 0)
+            throw new IllegalArgumentException("Empty leaves can't be compressed.");
+        int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long[] values = new long[size];
+        double[] measured = new double[size];
+        int[] n = {0};
+        leaf.forEach((pos, measure) -> {
+            measured[n[0]] = measure;
+            values[n[0]++] = codec.encode(pos);
+        });
+
+        long[] firsts = new long[blocks];
+        long[] lasts = new long[blocks];
+        int[] offsets = new int[blocks + 1];
+        byte[][] deltas = new byte[blocks][];
+        double[][] measures = new double[blocks][];
+        Aggregate[] aggregates = new Aggregate[blocks];
+        byte[] buffer = new byte[BLOCK_SIZE * 10];
+        for (int b = 0; b < blocks; b++) {
+            int from = b * BLOCK_SIZE;
+            int to = Math.min(size, from + BLOCK_SIZE);
+            firsts[b] = values[from];
+            lasts[b] = values[to - 1];
+            offsets[b + 1] = to;
+            int length = 0;
+            for (int i = from + 1; i < to; i++)
+                length = writeVarint(buffer, length, values[i] - values[i - 1]);
+            deltas[b] = Arrays.copyOf(buffer, length);
+            Aggregate aggregate = Aggregate.EMPTY;
+            for (int i = from; i < to; i++) {
+                if (!Double.isNaN(measured[i]))
+                    aggregate = aggregate.combine(new Aggregate(1, measured[i], measured[i], measured[i]));
+            }
+            aggregates[b] = aggregate;
+            measures[b] = aggregate.isEmpty() ? null : Arrays.copyOfRange(measured, from, to);
+        }
+        return new BlockLeaf<>(codec, firsts, lasts, offsets, deltas, measures, aggregates);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Leaf<K> with(K pos, double measure) {
+        return thaw().with(pos, measure);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Leaf<K> without(K pos) {
+        return rank(codec.encode(pos), false) == rank(codec.encode(pos), true) ? this : thaw().without(pos);
+    }
+
+    /**
+     * @inheritDoc
+     * <p>
+     * Decompresses the leaf, like {@link #without(Comparable)} does, to find the same occurrence it would remove.
+     */
+    @Override
+    public double measureAt(K pos) {
+        long value = codec.encode(pos);
+        return rank(value, false) == rank(value, true) ? UNMEASURED : thaw().measureAt(pos);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int size() {
+        return offsets[firsts.length];
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long footprint() {
+        long bytes = 48 + 28L * firsts.length + 4L * offsets.length;
+        for (int b = 0; b < firsts.length; b++)
+            bytes += 72 + deltas[b].length + (measures[b] == null ? 0 : 16 + 8L * measures[b].length);
+        return bytes;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int count(K left, K right) {
+        if (left.compareTo(right) > 0)
+            return 0;
+        return rank(codec.encode(right), true) - rank(codec.encode(left), false);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(K left, K right) {
+        if (left.compareTo(right) > 0)
+            return Aggregate.EMPTY;
+        long l = codec.encode(left);
+        long r = codec.encode(right);
+        Aggregate aggregate = Aggregate.EMPTY;
+        for (int b = firstBlockEndingAtOrAfter(l); b < firsts.length && firsts[b] <= r; b++) {
+            if (aggregates[b].isEmpty())
+                continue;
+            if (l <= firsts[b] && lasts[b] <= r) {
+                aggregate = aggregate.combine(aggregates[b]);
+                continue;
+            }
+            long[] decoded = decode(b);
+            for (int i = 0; i < decoded.length; i++) {
+                double m = measures[b][i];
+                if (decoded[i] >= l && decoded[i] <= r && !Double.isNaN(m))
+                    aggregate = aggregate.combine(new Aggregate(1, m, m, m));
+            }
+        }
+        return aggregate;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void forEach(ObjDoubleConsumer<? super K> action) {
+        for (int b = 0; b < firsts.length; b++) {
+            long[] decoded = decode(b);
+            for (int i = 0; i < decoded.length; i++)
+                action.accept(codec.decode(decoded[i]), measures[b] == null ? UNMEASURED : measures[b][i]);
+        }
+    }
+
+    /**
+     * Decompress this leaf into the representation that fits its size.
+     */
+    private Leaf<K> thaw() {
+        return size() <= ArrayLeaf.CAPACITY ? ArrayLeaf.of(this) : PositionTree.of(this);
+    }
+
+    /**
+     * Count the positions less than (or, if inclusive, equal to) the given one, only decoding the block where the
+     * count stops.
+     */
+    private int rank(long value, boolean inclusive) {
+        int b = inclusive ? firstBlockEndingAfter(value) : firstBlockEndingAtOrAfter(value);
+        if (b == firsts.length)
+            return size();
+        if (inclusive ? firsts[b] > value : firsts[b] >= value)
+            return offsets[b];
+        long[] decoded = decode(b);
+        int i = 0;
+        while (i < decoded.length && (inclusive ? decoded[i] <= value : decoded[i] < value))
+            i++;
+        return offsets[b] + i;
+    }
+
+    private int firstBlockEndingAtOrAfter(long value) {
+        int lo = 0;
+        int hi = lasts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lasts[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private int firstBlockEndingAfter(long value) {
+        int lo = 0;
+        int hi = lasts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lasts[mid] <= value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private long[] decode(int b) {
+        long[] decoded = new long[offsets[b + 1] - offsets[b]];
+        decoded[0] = firsts[b];
+        byte[] bytes = deltas[b];
+        int at = 0;
+        for (int i = 1; i < decoded.length; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte next;
+            do {
+                next = bytes[at++];
+                delta |= (long) (next & 0x7F) << shift;
+                shift += 7;
+            } while (next < 0);
+            decoded[i] = decoded[i - 1] + delta;
+        }
+        return decoded;
+    }
+
+    /**
+     * Write a delta, read as an unsigned number, as a varint.
+     *
+     * @return the offset after the written bytes.
+     */
+    private static int writeVarint(byte[] buffer, int at, long delta) {
+        while ((delta & ~0x7FL) != 0) {
+            buffer[at++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        buffer[at++] = (byte) delta;
+        return at;
+    }
+}
@@ -0,0 +1,537 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+import com.baldrichcorp.potts.index.query.IndexKeySet;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A {@code RecursiveRangeQueryIndex} optimized for lookups on full key tuples. The whole tuple is hashed into a 64 bit
+ * fingerprint and the leaves are kept in a single open-addressing table keyed by it, so a full-tuple operation costs
+ * one hash computation and (usually) one probe instead of one map lookup per key. Fingerprint matches are verified
+ * against the stored tuple, so collisions never produce wrong answers.
+ * <p>
+ * Prefix operations ({@link #count(IndexKeySet, Comparable, Comparable)} and
+ * {@link #accumulate(IndexKeySet, Comparable, Comparable)}) are answered by a secondary trie whose leaves are the
+ * same entries stored in the table.
+ * <p>
+ * Leaves are versioned (see {@code VersionClock}). Lookups read the table optimistically and are only retried, under
+ * a read lock, if a writer restructured the table (inserted, deleted or resized) while they were probing it.
+ *
+ * @param <T> the type of the elements that can be added to the index.
+ * @param <K> the type of the criterion used for comparison in queries.
+ * @author Santiago Baldrich.
+ */
+public class HashedRecursiveRangeQueryIndex<T, K extends Comparable<? super K>> implements RecursiveRangeQueryIndex<T, K> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    private final VersionClock clock;
+    private final StampedLock structure = new StampedLock();
+    private volatile Table<K> table;
+    private int size;
+    private final Prefix<K> prefixes = new Prefix<>();
+
+    public HashedRecursiveRangeQueryIndex() {
+        this(new VersionClock());
+    }
+
+    /**
+     * Initializes a new {@code HashedRecursiveRangeQueryIndex} that tags its writes using the given clock.
+     *
+     * @param clock the clock shared by all the nodes of the index, snapshots are taken from it.
+     */
+    public HashedRecursiveRangeQueryIndex(VersionClock clock) {
+        this(clock, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Initializes a new {@code HashedRecursiveRangeQueryIndex} able to hold the given number of distinct tuples
+     * before resizing its table.
+     *
+     * @param clock        the clock shared by all the nodes of the index, snapshots are taken from it.
+     * @param expectedSize the expected number of distinct tuples.
+     */
+    public HashedRecursiveRangeQueryIndex(VersionClock clock, int expectedSize) {
+        this.clock = clock;
+        this.table = new Table<>(Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, expectedSize * 2 - 1)) << 1);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(IndexKeySet keys, K pos) {
+        add(keys, pos, Leaf.UNMEASURED);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(IndexKeySet keys, K pos, double measure) {
+        clock.beginWrite();
+        try {
+            Entry<K> entry = entry(keys);
+            Leaf<K> positions = Versioned.at(entry.positions, VersionClock.LATEST);
+            install(entry, (positions == null ? Leaf.<K> empty() : positions).with(pos, measure));
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean remove(IndexKeySet keys, K pos) {
+        clock.beginWrite();
+        try {
+            Entry<K> entry = table.find(keys, fingerprint(keys));
+            Leaf<K> positions = entry == null ? null : Versioned.at(entry.positions, VersionClock.LATEST);
+            if (positions == null)
+                return false;
+            Leaf<K> remaining = positions.without(pos);
+            if (remaining == positions)
+                return false;
+            install(entry, remaining);
+            return true;
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean move(IndexKeySet keys, K oldPos, K newPos) {
+        clock.beginWrite();
+        try {
+            Entry<K> entry = table.find(keys, fingerprint(keys));
+            Leaf<K> positions = entry == null ? null : Versioned.at(entry.positions, VersionClock.LATEST);
+            if (positions == null)
+                return false;
+            Leaf<K> remaining = positions.without(oldPos);
+            if (remaining == positions)
+                return false;
+            install(entry, remaining.with(newPos, positions.measureAt(oldPos)));
+            return true;
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int query(IndexKeySet keys, K start, K end) {
+        QueryTrace trace = QueryTrace.active();
+        Leaf<K> positions = positions(keys, trace);
+        int result = positions == null ? 0 : positions.count(start, end);
+        if (trace != null)
+            trace.stage("leaf");
+        return result;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(IndexKeySet keys, K start, K end) {
+        QueryTrace trace = QueryTrace.active();
+        Leaf<K> positions = positions(keys, trace);
+        Aggregate result = positions == null || start.compareTo(end) > 0 ? Aggregate.EMPTY : positions.aggregate(start, end);
+        if (trace != null)
+            trace.stage("leaf");
+        return result;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int accumulate(IndexKeySet keys, K start, K end) {
+        QueryTrace trace = QueryTrace.active();
+        Prefix<K> prefix = prefixes.walk(keys, trace);
+        if (prefix == null)
+            return 0;
+        long version = clock.readVersion();
+        int total = 0;
+        for (Entry<K> entry : prefix.leaves.values()) {
+            Leaf<K> positions = Versioned.at(entry.positions, version);
+            total += positions == null ? 0 : positions.count(start, end);
+        }
+        if (trace != null) {
+            trace.visited(prefix.leaves.size());
+            trace.stage("leaf");
+        }
+        return total;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int count(IndexKeySet keys, K start, K end) {
+        QueryTrace trace = QueryTrace.active();
+        Prefix<K> prefix = prefixes.walk(keys, trace);
+        if (prefix == null)
+            return 0;
+        long version = clock.readVersion();
+        int total = 0;
+        for (Entry<K> entry : prefix.leaves.values()) {
+            Leaf<K> positions = Versioned.at(entry.positions, version);
+            total += positions != null && positions.count(start, end) > 0 ? 1 : 0;
+        }
+        if (trace != null) {
+            trace.visited(prefix.leaves.size());
+            trace.stage("leaf");
+        }
+        return total;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int compact(PositionCodec<K> codec, int minSize, long idleWrites) {
+        long version = clock.published() - idleWrites;
+        int compacted = 0;
+        for (Entry<K> entry : table.entries) {
+            if (entry == null)
+                continue;
+            clock.beginWrite();
+            try {
+                Leaf<K> positions = Versioned.at(entry.positions, VersionClock.LATEST);
+                if (positions == null || positions instanceof BlockLeaf || positions.size() < minSize
+                        || entry.positions.version > version)
+                    continue;
+                install(entry, BlockLeaf.of(positions, codec));
+                compacted++;
+            } finally {
+                clock.endWrite();
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void merge(RecursiveRangeQueryIndex<T, K> other) {
+        if (other == this || !(other instanceof HashedRecursiveRangeQueryIndex))
+            throw new IllegalArgumentException(String.format("Can't merge a %s into this index.", other.getClass().getSimpleName()));
+        HashedRecursiveRangeQueryIndex<T, K> source = (HashedRecursiveRangeQueryIndex<T, K>) other;
+        VersionClock.Snapshot snapshot = source.clock.snapshot();
+        try {
+            clock.beginWrite();
+            try {
+                long version = source.clock.readVersion();
+                for (Entry<K> entry : source.table.entries) {
+                    Leaf<K> positions = entry == null ? null : Versioned.at(entry.positions, version);
+                    if (positions != null)
+                        merge(IndexKeySet.of(entry.tuple), positions);
+                }
+            } finally {
+                clock.endWrite();
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void save(ObjectOutput out, PositionCodec<K> codec) {
+        VersionClock.Snapshot snapshot = clock.snapshot();
+        try {
+            long version = clock.readVersion();
+            for (Entry<K> entry : table.entries) {
+                Leaf<K> positions = entry == null ? null : Versioned.at(entry.positions, version);
+                if (positions != null)
+                    IndexFile.write(out, IndexKeySet.of(entry.tuple), positions, codec);
+            }
+        } finally {
+            snapshot.close();
+        }
+        IndexFile.end(out);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void merge(ObjectInput in, PositionCodec<K> codec) {
+        clock.beginWrite();
+        try {
+            for (IndexKeySet keys = IndexFile.readKeys(in); keys != null; keys = IndexFile.readKeys(in))
+                merge(keys, IndexFile.readLeaf(in, codec));
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * Merge the occurrences of a tuple into its entry. Must be called within a write.
+     */
+    private void merge(IndexKeySet keys, Leaf<K> leaf) {
+        Entry<K> entry = entry(keys);
+        Leaf<K> positions = Versioned.at(entry.positions, VersionClock.LATEST);
+        install(entry, positions == null ? leaf : Leaf.merge(positions, leaf));
+    }
+
+    /**
+     * Find the entry of a tuple, inserting a new one if there is none. Must be called within a write.
+     */
+    private Entry<K> entry(IndexKeySet keys) {
+        long fingerprint = fingerprint(keys);
+        Entry<K> entry = table.find(keys, fingerprint);
+        if (entry == null) {
+            entry = new Entry<>(fingerprint, tuple(keys));
+            insert(entry);
+            prefixes.link(entry.tuple, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Get the positions of the given tuple visible to the current thread, recording the probe on the trace if any.
+     */
+    private Leaf<K> positions(IndexKeySet keys, QueryTrace trace) {
+        long fingerprint = fingerprint(keys);
+        long stamp = structure.tryOptimisticRead();
+        Entry<K> entry = table.find(keys, fingerprint);
+        if (!structure.validate(stamp)) {
+            stamp = structure.readLock();
+            try {
+                entry = table.find(keys, fingerprint);
+            } finally {
+                structure.unlockRead(stamp);
+            }
+        }
+        if (trace != null) {
+            trace.visited(1);
+            trace.stage("probe");
+        }
+        return entry == null ? null : Versioned.at(entry.positions, clock.readVersion());
+    }
+
+    /**
+     * Install a new version of the positions of an entry, entries left without positions are discarded once no
+     * snapshot can see them, right away if no snapshot is pinned or when their tombstone is reclaimed otherwise.
+     */
+    private void install(Entry<K> entry, Leaf<K> positions) {
+        Versioned<Leaf<K>> head = clock.install(entry.positions, positions.isEmpty() ? null : positions);
+        if (head == null) {
+            discard(entry);
+            return;
+        }
+        entry.positions = head;
+        if (head.value == null) {
+            clock.retire(() -> {
+                if (entry.positions == head)
+                    discard(entry);
+            });
+        }
+    }
+
+    /**
+     * Remove an entry from the table and the trie. Must be called within a write or a reclamation.
+     */
+    private void discard(Entry<K> entry) {
+        prefixes.unlink(entry.tuple, 0);
+        long stamp = structure.writeLock();
+        try {
+            table.delete(entry);
+            size--;
+        } finally {
+            structure.unlockWrite(stamp);
+        }
+    }
+
+    private void insert(Entry<K> entry) {
+        long stamp = structure.writeLock();
+        try {
+            if (++size * 2 > table.entries.length)
+                table = table.resize();
+            table.place(entry);
+        } finally {
+            structure.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Hash a whole key tuple into 64 bits.
+     */
+    static long fingerprint(IndexKeySet keys) {
+        long h = SEED;
+        for (int i = 0; i < keys.size(); i++) {
+            h ^= Objects.hashCode(keys.get(i));
+            h *= 0xC6A4A7935BD1E995L;
+            h ^= h >>> 47;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean matches(Object[] tuple, IndexKeySet keys) {
+        if (tuple.length != keys.size())
+            return false;
+        for (int i = 0; i < tuple.length; i++) {
+            if (!Objects.equals(tuple[i], keys.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static Object[] tuple(IndexKeySet keys) {
+        Object[] tuple = new Object[keys.size()];
+        for (int i = 0; i < tuple.length; i++)
+            tuple[i] = keys.get(i);
+        return tuple;
+    }
+
+    /**
+     * Open-addressing table with linear probing. The fingerprints are kept in their own array so probing does not
+     * need to dereference the entries.
+     */
+    private static final class Table<K extends Comparable<? super K>> {
+        final long[] fingerprints;
+        final Entry<K>[] entries;
+
+        @SuppressWarnings("unchecked")
+        Table(int capacity) {
+            fingerprints = new long[capacity];
+            entries = (Entry<K>[]) new Entry<?>[capacity];
+        }
+
+        Entry<K> find(IndexKeySet keys, long fingerprint) {
+            int mask = entries.length - 1;
+            for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+                Entry<K> entry = entries[slot];
+                if (entry == null)
+                    return null;
+                if (fingerprints[slot] == fingerprint && matches(entry.tuple, keys))
+                    return entry;
+            }
+        }
+
+        void place(Entry<K> entry) {
+            int mask = entries.length - 1;
+            int slot = (int) entry.fingerprint & mask;
+            while (entries[slot] != null)
+                slot = (slot + 1) & mask;
+            fingerprints[slot] = entry.fingerprint;
+            entries[slot] = entry;
+        }
+
+        /**
+         * Remove an entry, shifting back the entries of its probe sequence so lookups never need tombstones.
+         */
+        void delete(Entry<K> entry) {
+            int mask = entries.length - 1;
+            int hole = (int) entry.fingerprint & mask;
+            while (entries[hole] != entry)
+                hole = (hole + 1) & mask;
+            for (int next = (hole + 1) & mask; entries[next] != null; next = (next + 1) & mask) {
+                int home = (int) fingerprints[next] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    fingerprints[hole] = fingerprints[next];
+                    entries[hole] = entries[next];
+                    hole = next;
+                }
+            }
+            fingerprints[hole] = 0;
+            entries[hole] = null;
+        }
+
+        Table<K> resize() {
+            Table<K> resized = new Table<>(entries.length * 2);
+            for (Entry<K> entry : entries) {
+                if (entry != null)
+                    resized.place(entry);
+            }
+            return resized;
+        }
+    }
+
+    private static final class Entry<K extends Comparable<? super K>> {
+        final long fingerprint;
+        final Object[] tuple;
+        volatile Versioned<Leaf<K>> positions;
+
+        Entry(long fingerprint, Object[] tuple) {
+            this.fingerprint = fingerprint;
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * Node of the secondary trie used for prefix operations.
+     */
+    private static final class Prefix<K extends Comparable<? super K>> {
+        /**
+         * Stands for null keys in the maps, which can't hold them.
+         */
+        private static final Object NULL = new Object();
+
+        final Map<Object, Prefix<K>> branches = new ConcurrentHashMap<>();
+        final Map<Object, Entry<K>> leaves = new ConcurrentHashMap<>();
+
+        void link(Object[] tuple, Entry<K> entry) {
+            Prefix<K> node = this;
+            for (int i = 0; i < tuple.length - 1; i++)
+                node = node.branches.computeIfAbsent(mask(tuple[i]), k -> new Prefix<>());
+            node.leaves.put(mask(tuple[tuple.length - 1]), entry);
+        }
+
+        void unlink(Object[] tuple, int level) {
+            if (level == tuple.length - 1) {
+                leaves.remove(mask(tuple[level]));
+                return;
+            }
+            Prefix<K> branch = branches.get(mask(tuple[level]));
+            if (branch == null)
+                return;
+            branch.unlink(tuple, level + 1);
+            if (branch.branches.isEmpty() && branch.leaves.isEmpty())
+                branches.remove(mask(tuple[level]));
+        }
+
+        Prefix<K> walk(IndexKeySet keys, QueryTrace trace) {
+            Prefix<K> node = this;
+            for (int i = 0; i < keys.size() && node != null; i++) {
+                node = node.branches.get(mask(keys.get(i)));
+                if (trace != null)
+                    trace.level(i, keys.get(i));
+            }
+            return node;
+        }
+
+        private static Object mask(Object key) {
+            return key == null ? NULL : key;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.IndexKeySet;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Record format of saved {@code RecursiveRangeQueryIndex} instances. A saved index is a sequence of records, one per
+ * full key tuple, followed by an end marker:
+ * <pre>
+ * tuple length (int, 0 marks the end) | keys (serialized objects) | occurrences (int) | measured (boolean) |
+ * encoded positions, sorted (longs) | measures, only if measured (doubles)
+ * </pre>
+ * Keys must be serializable, positions are written through a {@code PositionCodec}. Object streams are reset after
+ * every record so their handle tables don't keep every saved key alive; readers skip the resets by themselves. I/O
+ * errors are rethrown as {@code UncheckedIOException}s.
+ *
+ * @author Santiago Baldrich.
+ * @see RecursiveRangeQueryIndex#save(ObjectOutput, PositionCodec)
+ */
+final class IndexFile {
+
+    private IndexFile() {
+    }
+
+    /**
+     * Write the record of a tuple.
+     */
+    static <K extends Comparable<? super K>> void write(ObjectOutput out, IndexKeySet keys, Leaf<K> leaf,
+                                                       PositionCodec<K> codec) {
+        try {
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++)
+                out.writeObject(keys.get(i));
+            long[] positions = new long[leaf.size()];
+            double[] measures = new double[positions.length];
+            boolean[] measured = {false};
+            int[] n = {0};
+            leaf.forEach((pos, measure) -> {
+                measured[0] |= !Double.isNaN(measure);
+                measures[n[0]] = measure;
+                positions[n[0]++] = codec.encode(pos);
+            });
+            out.writeInt(positions.length);
+            out.writeBoolean(measured[0]);
+            for (long position : positions)
+                out.writeLong(position);
+            if (measured[0]) {
+                for (double measure : measures)
+                    out.writeDouble(measure);
+            }
+            if (out instanceof ObjectOutputStream)
+                ((ObjectOutputStream) out).reset();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Write the end marker of a saved index.
+     */
+    static void end(ObjectOutput out) {
+        try {
+            out.writeInt(0);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Read the keys of the next record.
+     *
+     * @return the keys of the tuple, or null at the end of the saved index.
+     */
+    static IndexKeySet readKeys(ObjectInput in) {
+        try {
+            int length = in.readInt();
+            if (length == 0)
+                return null;
+            Object[] keys = new Object[length];
+            for (int i = 0; i < length; i++)
+                keys[i] = in.readObject();
+            return IndexKeySet.of(keys);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalArgumentException("The saved index holds keys of an unknown class.", ex);
+        }
+    }
+
+    /**
+     * Read the occurrences of the record whose keys were just read.
+     */
+    @SuppressWarnings("unchecked")
+    static <K extends Comparable<? super K>> Leaf<K> readLeaf(ObjectInput in, PositionCodec<K> codec) {
+        try {
+            int size = in.readInt();
+            boolean measured = in.readBoolean();
+            K[] positions = (K[]) new Comparable<?>[size];
+            double[] measures = new double[size];
+            for (int i = 0; i < size; i++)
+                positions[i] = codec.decode(in.readLong());
+            for (int i = 0; i < size; i++)
+                measures[i] = measured ? in.readDouble() : Leaf.UNMEASURED;
+            return Leaf.of(positions, measures);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.IndexKeySet;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Blocked Bloom filter over the full key tuples of an index, checked before looking a tuple up so that lookups of
+ * tuples that were never added are answered without walking the index. All the bits of a tuple fall in the same
+ * 512 bit block, so a lookup touches a single cache line.
+ * <p>
+ * The filter never forgets a tuple: tuples that are removed from the index keep answering <em>maybe</em> until the
+ * filter is rebuilt, which happens whenever the number of tuples outgrows it. Writes must be serialized by the
+ * index that owns the filter, lookups may run concurrently with them.
+ * <p>
+ * The filter counts the lookups made to it and how many of them it short-circuited.
+ *
+ * @author Santiago Baldrich.
+ * @see MultisetRecursiveRangeQueryIndex#MultisetRecursiveRangeQueryIndex(VersionClock, Rollup, double)
+ */
+public final class KeyFilter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int BLOCK_BITS = 512;
+    private static final int MAX_HASHES = 16;
+    /**
+     * Extra bits that make up for tuples sharing a block being more likely to collide than in a plain Bloom filter.
+     */
+    private static final double BLOCK_OVERHEAD = 1.25;
+
+    private final double falsePositiveRate;
+    private volatile Bits bits;
+    private volatile int keys;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder shortCircuited = new LongAdder();
+
+    /**
+     * Initializes a new, empty, {@code KeyFilter}.
+     *
+     * @param falsePositiveRate the rate of lookups of absent tuples that the filter lets through, in (0, 1).
+     */
+    KeyFilter(double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("The false positive rate must be between 0 and 1.");
+        this.falsePositiveRate = falsePositiveRate;
+        this.bits = new Bits(INITIAL_CAPACITY, falsePositiveRate);
+    }
+
+    /**
+     * Check whether a tuple may have been added to the filter.
+     *
+     * @param keys the full key tuple.
+     * @return <em>false</em> if the tuple was never added, <em>true</em> if it may have been.
+     */
+    boolean mightContain(IndexKeySet keys) {
+        lookups.increment();
+        if (bits.mightContain(HashedRecursiveRangeQueryIndex.fingerprint(keys)))
+            return true;
+        shortCircuited.increment();
+        return false;
+    }
+
+    /**
+     * Add a tuple to the filter.
+     *
+     * @param tuple the full key tuple.
+     * @return <em>true</em> if the filter holds more tuples than it was sized for and should be rebuilt with
+     * {@link #rebuild(Consumer)}.
+     */
+    boolean add(IndexKeySet tuple) {
+        Bits current = bits;
+        if (current.put(HashedRecursiveRangeQueryIndex.fingerprint(tuple)))
+            keys++;
+        return keys > current.capacity;
+    }
+
+    /**
+     * Replace the filter by one sized for twice the tuples it holds, which forgets the tuples that are no longer in
+     * the index. The new filter is only published once it is complete.
+     *
+     * @param tuples feeds every tuple of the index to the consumer it is given.
+     */
+    void rebuild(Consumer<Consumer<IndexKeySet>> tuples) {
+        Bits rebuilt = new Bits(Math.max(INITIAL_CAPACITY, keys * 2), falsePositiveRate);
+        int[] added = {0};
+        tuples.accept(tuple -> {
+            if (rebuilt.put(HashedRecursiveRangeQueryIndex.fingerprint(tuple)))
+                added[0]++;
+        });
+        keys = added[0];
+        bits = rebuilt;
+    }
+
+    /**
+     * @return the configured rate of lookups of absent tuples that the filter lets through.
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * @return the approximate number of distinct tuples in the filter.
+     */
+    public int getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return the size of the filter, in bits.
+     */
+    public long getBits() {
+        return (long) bits.words.length() * Long.SIZE;
+    }
+
+    /**
+     * @return the number of lookups checked against the filter.
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return the number of lookups answered by the filter alone, because their tuple was never added.
+     */
+    public long getShortCircuited() {
+        return shortCircuited.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KeyFilter(falsePositiveRate=%s, keys=%d, bits=%d, lookups=%d, shortCircuited=%d)",
+                falsePositiveRate, getKeys(), getBits(), getLookups(), getShortCircuited());
+    }
+
+    /**
+     * The bits of the filter. Bits are only ever set, through atomic updates of their words, so a lookup racing with
+     * a write sees the tuple either as it was before or as it is after the write.
+     */
+    private static final class Bits {
+        final AtomicLongArray words;
+        final int capacity;
+        final int blockMask;
+        final int hashes;
+
+        Bits(int capacity, double falsePositiveRate) {
+            double bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+            long size = (long) Math.ceil(capacity * bitsPerKey * BLOCK_OVERHEAD);
+            int blocks = 1;
+            while ((long) blocks * BLOCK_BITS < size)
+                blocks <<= 1;
+            this.words = new AtomicLongArray(blocks * (BLOCK_BITS / Long.SIZE));
+            this.capacity = capacity;
+            this.blockMask = blocks - 1;
+            this.hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerKey * Math.log(2))));
+        }
+
+        /**
+         * Set the bits of a fingerprint.
+         *
+         * @return <em>true</em> if any of them was not set already.
+         */
+        boolean put(long fingerprint) {
+            int base = block(fingerprint);
+            int h1 = (int) fingerprint;
+            int h2 = step(fingerprint);
+            boolean changed = false;
+            for (int i = 0; i < hashes; i++) {
+                int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+                long mask = 1L << bit;
+                int word = base + (bit >>> 6);
+                if ((words.get(word) & mask) == 0)
+                    changed |= (words.getAndAccumulate(word, mask, (w, m) -> w | m) & mask) == 0;
+            }
+            return changed;
+        }
+
+        boolean mightContain(long fingerprint) {
+            int base = block(fingerprint);
+            int h1 = (int) fingerprint;
+            int h2 = step(fingerprint);
+            for (int i = 0; i < hashes; i++) {
+                int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+                if ((words.get(base + (bit >>> 6)) & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        private int block(long fingerprint) {
+            return ((int) (fingerprint >>> 32) & blockMask) * (BLOCK_BITS / Long.SIZE);
+        }
+
+        private static int step(long fingerprint) {
+            return (int) ((fingerprint * 0x9E3779B97F4A7C15L) >>> 40) | 1;
+        }
+    }
+}
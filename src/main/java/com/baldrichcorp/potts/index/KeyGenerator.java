@@ -0,0 +1,41 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.IndexKeySet;
+
+import java.util.function.Function;
+
+/**
+ * Generator function that extracts the indexing keys of an element. Unlike a {@code Function<T, IndexKeySet>}, it
+ * writes the keys into a key set owned by the caller, which can be reused across calls so no key set or array is
+ * allocated per operation.
+ *
+ * @param <T> the type of the elements from which keys are extracted.
+ *
+ * @author Santiago Baldrich.
+ */
+@FunctionalInterface
+public interface KeyGenerator<T> {
+
+    /**
+     * Append the keys of the given element, in order, to the given key set.
+     *
+     * @param t    the element from which to extract the keys.
+     * @param keys an empty key set to write the keys into.
+     */
+    void generate(T t, IndexKeySet keys);
+
+    /**
+     * Adapt a function that creates a new key set per element to this interface.
+     *
+     * @param function the function to adapt.
+     * @param <T>      the type of the elements from which keys are extracted.
+     * @return a generator that copies the keys obtained from <em>function</em>.
+     */
+    static <T> KeyGenerator<T> of(Function<T, IndexKeySet> function) {
+        return (t, keys) -> {
+            IndexKeySet generated = function.apply(t);
+            for (int i = 0; i < generated.size(); i++)
+                keys.add(generated.get(i));
+        };
+    }
+}
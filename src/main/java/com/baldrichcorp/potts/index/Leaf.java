@@ -0,0 +1,148 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Immutable multiset of the positions (and optional measures) at which an element was observed. Leaves pick their
+ * representation from their size: a single occurrence is kept inline ({@code SingletonLeaf}), a few occurrences in
+ * sorted arrays ({@code ArrayLeaf}) and larger ones in an augmented treap ({@code PositionTree}). Updates return a new
+ * leaf, promoted or demoted to the representation that fits its new size, and never modify the original one.
+ *
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ */
+interface Leaf<K extends Comparable<? super K>> {
+
+    /**
+     * Measure used for occurrences that were added without one. Unmeasured occurrences are counted but do not take
+     * part in aggregates.
+     */
+    double UNMEASURED = Double.NaN;
+
+    static <K extends Comparable<? super K>> Leaf<K> empty() {
+        return ArrayLeaf.empty();
+    }
+
+    /**
+     * Build a leaf, in the representation that fits its size, from occurrences sorted by position.
+     *
+     * @param positions the sorted positions, the array is not copied.
+     * @param measures  the measures of each position, the array is not copied.
+     * @param <K>       the type of the positions.
+     * @return a leaf with the given occurrences.
+     */
+    static <K extends Comparable<? super K>> Leaf<K> of(K[] positions, double[] measures) {
+        if (positions.length == 0)
+            return empty();
+        if (positions.length == 1)
+            return new SingletonLeaf<>(positions[0], measures[0]);
+        return positions.length <= ArrayLeaf.CAPACITY ? ArrayLeaf.of(positions, measures) : PositionTree.of(positions, measures);
+    }
+
+    /**
+     * Merge the occurrences of two leaves in linear time. Occurrences of the first leaf go before those of the
+     * second one at the same position.
+     *
+     * @param first  a leaf.
+     * @param second another leaf.
+     * @param <K>    the type of the positions.
+     * @return a leaf with the occurrences of both leaves, one of them if the other is empty.
+     */
+    @SuppressWarnings("unchecked")
+    static <K extends Comparable<? super K>> Leaf<K> merge(Leaf<K> first, Leaf<K> second) {
+        if (second.isEmpty())
+            return first;
+        if (first.isEmpty())
+            return second;
+        K[] positions = (K[]) new Comparable<?>[first.size() + second.size()];
+        double[] measures = new double[positions.length];
+        K[] merged = (K[]) new Comparable<?>[second.size()];
+        double[] mergedMeasures = new double[merged.length];
+        int[] n = {0, 0};
+        first.forEach((pos, measure) -> {
+            measures[n[0]] = measure;
+            positions[n[0]++] = pos;
+        });
+        second.forEach((pos, measure) -> {
+            mergedMeasures[n[1]] = measure;
+            merged[n[1]++] = pos;
+        });
+        for (int i = n[0] - 1, j = n[1] - 1, k = positions.length - 1; j >= 0; k--) {
+            if (i >= 0 && positions[i].compareTo(merged[j]) > 0) {
+                measures[k] = measures[i];
+                positions[k] = positions[i--];
+            } else {
+                measures[k] = mergedMeasures[j];
+                positions[k] = merged[j--];
+            }
+        }
+        return of(positions, measures);
+    }
+
+    /**
+     * Get a leaf that contains all the occurrences of this one plus a new one.
+     *
+     * @param pos     the position of the new occurrence.
+     * @param measure the measure of the new occurrence or {@link #UNMEASURED}.
+     * @return the new leaf.
+     */
+    Leaf<K> with(K pos, double measure);
+
+    /**
+     * Get a leaf that contains all the occurrences of this one except for one occurrence at the given position.
+     *
+     * @param pos the position of the occurrence to remove.
+     * @return the new leaf, or this same instance if there is no occurrence at <em>pos</em>.
+     */
+    Leaf<K> without(K pos);
+
+    /**
+     * Get the measure of the occurrence that {@link #without(Comparable)} would remove for the given position.
+     *
+     * @param pos the position of the occurrence.
+     * @return the measure of the occurrence, {@link #UNMEASURED} if it has none or if there is no occurrence at
+     * <em>pos</em>.
+     */
+    double measureAt(K pos);
+
+    /**
+     * @return the total number of occurrences in the leaf.
+     */
+    int size();
+
+    /**
+     * @return an estimate of the heap taken by the leaf, in bytes, including the positions it holds.
+     */
+    long footprint();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Count the occurrences that fall within the given range.
+     *
+     * @param left  the lower bound of the range.
+     * @param right the upper bound of the range.
+     * @return the number of occurrences in <em>[left, right]</em>.
+     */
+    int count(K left, K right);
+
+    /**
+     * Aggregate the measures of the occurrences that fall within the given range.
+     *
+     * @param left  the lower bound of the range.
+     * @param right the upper bound of the range.
+     * @return an {@code Aggregate} of the measured occurrences in <em>[left, right]</em>.
+     */
+    Aggregate aggregate(K left, K right);
+
+    /**
+     * Visit every occurrence in ascending order of position.
+     *
+     * @param action the action that receives the position and the measure of each occurrence.
+     */
+    void forEach(ObjDoubleConsumer<? super K> action);
+}
@@ -1,10 +1,21 @@
 package com.baldrichcorp.potts.index;
 
+import com.baldrichcorp.potts.index.query.Aggregate;
 import com.baldrichcorp.potts.index.query.IndexKeySet;
+import com.baldrichcorp.potts.index.query.MultiKeyResponse;
 import com.baldrichcorp.potts.index.query.QueryRange;
 import com.baldrichcorp.potts.index.query.RangeQueryResponse;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -12,20 +23,42 @@ import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
- * Map-based implementation of a {@code MultiCriteriaRangeQueryIndex}.
+ * Map-based implementation of a {@code MultiCriteriaRangeQueryIndex}. Each sub-index is backed by a
+ * {@code RecursiveRangeQueryIndex}, a {@code MultisetRecursiveRangeQueryIndex} unless another implementation is
+ * given on construction or when the sub-index is defined.
  *
  * @param <T> the type of the elements that can be handled by this index.
  * @param <K> the type of the criterion used for comparison in queries.
  * @author Santiago Baldrich.
  * @see MultisetRecursiveRangeQueryIndex
+ * @see HashedRecursiveRangeQueryIndex
  */
 @Slf4j
 public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>> implements MultiCriteriaRangeQueryIndex<T, K> {
 
-    private Map<String, Function<T, IndexKeySet>> generators;
-    private Map<String, MultisetRecursiveRangeQueryIndex<Object, K>> index;
+    private static final int DEFAULT_KEY_CAPACITY = 4;
+    private static final int FILE_MAGIC = 0x504F5453;
+
+    private Map<String, KeyGenerator<T>> generators;
+    private Map<String, RecursiveRangeQueryIndex<Object, K>> index;
+    private final Function<VersionClock, ? extends RecursiveRangeQueryIndex<Object, K>> implementation;
+    private final VersionClock clock = new VersionClock();
+    private volatile String[] identifiers = new String[0];
+    private volatile QueryTracer tracer;
+    private final ThreadLocal<IndexKeySet> buffers = ThreadLocal.withInitial(() -> IndexKeySet.create(DEFAULT_KEY_CAPACITY));
 
     public MapMultiCriteriaRangeQueryIndex() {
+        this(MultisetRecursiveRangeQueryIndex::new);
+    }
+
+    /**
+     * Initializes a new {@code MapMultiCriteriaRangeQueryIndex} whose sub-indices are created by the given function.
+     *
+     * @param implementation function that creates the {@code RecursiveRangeQueryIndex} that backs each sub-index
+     *                       from the clock shared by all of them.
+     */
+    public MapMultiCriteriaRangeQueryIndex(Function<VersionClock, ? extends RecursiveRangeQueryIndex<Object, K>> implementation) {
+        this.implementation = implementation;
         index = new ConcurrentHashMap<>();
         generators = new ConcurrentHashMap<>();
     }
@@ -35,10 +68,8 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
      */
     @Override
     public void add(final String indexIdentifier, T t, Function<T, IndexKeySet> keyGenerator, K pos) {
-        checkIndexPresent(indexIdentifier);
-        generators.put(indexIdentifier, keyGenerator);
-        index.put(indexIdentifier, new MultisetRecursiveRangeQueryIndex<>());
-        index.get(indexIdentifier).add(keyGenerator.apply(t), pos);
+        define(indexIdentifier, keyGenerator);
+        add(indexIdentifier, t, pos);
     }
 
     /**
@@ -47,7 +78,9 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
     @Override
     public void add(String indexIdentifier, T t, K pos) {
         checkIndexAbsent(indexIdentifier);
-        index.get(indexIdentifier).add(generators.get(indexIdentifier).apply(t), pos);
+        IndexKeySet ks = keys(indexIdentifier, t);
+        if (!ks.hasNull())
+            index.get(indexIdentifier).add(ks, pos);
     }
 
     /**
@@ -55,11 +88,98 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
      */
     @Override
     public void add(T t, K pos) {
-        generators.keySet().stream().forEach(k -> {
-            IndexKeySet ks = generators.get(k).apply(t);
-            if (!ks.hasNull())
-                index.get(k).add(ks, pos);
-        });
+        clock.beginWrite();
+        try {
+            for (String k : identifiers) {
+                IndexKeySet ks = keys(k, t);
+                if (!ks.hasNull())
+                    index.get(k).add(ks, pos);
+            }
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(String indexIdentifier, T t, K pos, double measure) {
+        checkIndexAbsent(indexIdentifier);
+        IndexKeySet ks = keys(indexIdentifier, t);
+        if (!ks.hasNull())
+            index.get(indexIdentifier).add(ks, pos, measure);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(T t, K pos, double measure) {
+        clock.beginWrite();
+        try {
+            for (String k : identifiers) {
+                IndexKeySet ks = keys(k, t);
+                if (!ks.hasNull())
+                    index.get(k).add(ks, pos, measure);
+            }
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean remove(String indexIdentifier, T t, K pos) {
+        checkIndexAbsent(indexIdentifier);
+        IndexKeySet ks = keys(indexIdentifier, t);
+        return !ks.hasNull() && index.get(indexIdentifier).remove(ks, pos);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void remove(T t, K pos) {
+        clock.beginWrite();
+        try {
+            for (String k : identifiers) {
+                IndexKeySet ks = keys(k, t);
+                if (!ks.hasNull())
+                    index.get(k).remove(ks, pos);
+            }
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean move(String indexIdentifier, T t, K oldPos, K newPos) {
+        checkIndexAbsent(indexIdentifier);
+        IndexKeySet ks = keys(indexIdentifier, t);
+        return !ks.hasNull() && index.get(indexIdentifier).move(ks, oldPos, newPos);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void move(T t, K oldPos, K newPos) {
+        clock.beginWrite();
+        try {
+            for (String k : identifiers) {
+                IndexKeySet ks = keys(k, t);
+                if (!ks.hasNull())
+                    index.get(k).move(ks, oldPos, newPos);
+            }
+        } finally {
+            clock.endWrite();
+        }
     }
 
     /**
@@ -67,9 +187,33 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
      */
     @Override
     public void define(String indexIdentifier, Function<T, IndexKeySet> keyGenerator) {
+        define(indexIdentifier, KeyGenerator.of(keyGenerator));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void define(String indexIdentifier, KeyGenerator<T> keyGenerator) {
+        define(indexIdentifier, keyGenerator, implementation);
+    }
+
+    /**
+     * Define a new sub-index backed by a particular {@code RecursiveRangeQueryIndex} implementation, for instance a
+     * {@code HashedRecursiveRangeQueryIndex} for sub-indices that are mostly queried on full key tuples.
+     *
+     * @param indexIdentifier the identifier of the new sub-index.
+     * @param keyGenerator    generator that appends the keys of an element to a key set.
+     * @param implementation  function that creates the index that will back the sub-index from the shared clock.
+     */
+    public synchronized void define(String indexIdentifier, KeyGenerator<T> keyGenerator,
+                                    Function<VersionClock, ? extends RecursiveRangeQueryIndex<Object, K>> implementation) {
         checkIndexPresent(indexIdentifier);
+        index.put(indexIdentifier, implementation.apply(clock));
         generators.put(indexIdentifier, keyGenerator);
-        index.put(indexIdentifier, new MultisetRecursiveRangeQueryIndex<>());
+        String[] defined = Arrays.copyOf(identifiers, identifiers.length + 1);
+        defined[identifiers.length] = indexIdentifier;
+        identifiers = defined;
     }
 
     /**
@@ -78,21 +222,28 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
     @Override
     public int query(final String indexIdentifier, T t, K start, K end) {
         checkIndexAbsent(indexIdentifier);
-        return index.get(indexIdentifier).query(generators.get(indexIdentifier).apply(t), start, end);
+        IndexKeySet ks = keys("query", indexIdentifier, t);
+        int result = ks.hasNull() ? 0 : index.get(indexIdentifier).query(ks, start, end);
+        endTrace(ks);
+        return result;
     }
 
     /**
      * @inheritDoc
      */
+    @SuppressWarnings("unchecked")
     @Override
     public RangeQueryResponse query(final T t, QueryRange<K>... ranges) {
         RangeQueryResponse response = new RangeQueryResponse(RangeQueryResponse.QueryType.JOINT);
-        Stream.of(ranges).parallel().forEach(range ->
-                generators.keySet().stream().forEach(k -> {
-                    IndexKeySet ks = generators.get(k).apply(t);
+        try (VersionClock.Snapshot snapshot = clock.snapshot()) {
+            Stream.of(ranges).parallel().forEach(range -> snapshot.run(() -> {
+                for (String k : identifiers) {
+                    IndexKeySet ks = keys("query", k, t);
                     response.add(k, range, ks.hasNull() ? -1 : index.get(k).query(ks, range.getStart(), range.getEnd()));
-                })
-        );
+                    endTrace(ks);
+                }
+            }));
+        }
         return response;
     }
 
@@ -102,27 +253,68 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
     @Override
     public RangeQueryResponse query(final T t, List<String> indexIds, List<QueryRange<K>> ranges) {
         RangeQueryResponse response = new RangeQueryResponse(RangeQueryResponse.QueryType.JOINT);
-        ranges.stream().forEach(range ->
-                indexIds.stream().forEach(ix -> {
-                    IndexKeySet ks = generators.get(ix).apply(t);
+        VersionClock.Snapshot snapshot = clock.snapshot();
+        try {
+            for (String ix : indexIds) {
+                IndexKeySet ks = keys("query", ix, t);
+                for (QueryRange<K> range : ranges)
                     response.add(ix, range, ks.hasNull() ? -1 : index.get(ix).query(ks, range.getStart(), range.getEnd()));
-                })
-        );
+                endTrace(ks);
+            }
+        } finally {
+            snapshot.close();
+        }
+        return response;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(String indexIdentifier, T t, K start, K end) {
+        checkIndexAbsent(indexIdentifier);
+        IndexKeySet ks = keys("aggregate", indexIdentifier, t);
+        Aggregate result = ks.hasNull() ? Aggregate.EMPTY : index.get(indexIdentifier).aggregate(ks, start, end);
+        endTrace(ks);
+        return result;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public RangeQueryResponse aggregate(final T t, List<String> indexIds, List<QueryRange<K>> ranges) {
+        RangeQueryResponse response = new RangeQueryResponse(RangeQueryResponse.QueryType.AGGREGATE);
+        VersionClock.Snapshot snapshot = clock.snapshot();
+        try {
+            for (String ix : indexIds) {
+                IndexKeySet ks = keys("aggregate", ix, t);
+                for (QueryRange<K> range : ranges)
+                    response.add(ix, range, ks.hasNull() ? Aggregate.EMPTY : index.get(ix).aggregate(ks, range.getStart(), range.getEnd()));
+                endTrace(ks);
+            }
+        } finally {
+            snapshot.close();
+        }
         return response;
     }
 
     /**
      * @inheritDoc
      */
+    @SuppressWarnings("unchecked")
     @Override
     public RangeQueryResponse count(T t, QueryRange<K>... ranges) {
         RangeQueryResponse response = new RangeQueryResponse(RangeQueryResponse.QueryType.COMBINATION);
-        Stream.of(ranges).parallel().forEach(range ->
-                generators.keySet().stream().forEach(k -> {
-                    IndexKeySet ks = generators.get(k).apply(t).drop();
+        try (VersionClock.Snapshot snapshot = clock.snapshot()) {
+            Stream.of(ranges).parallel().forEach(range -> snapshot.run(() -> {
+                for (String k : identifiers) {
+                    IndexKeySet ks = keys("count", k, t).drop();
                     response.add(k, range, ks.hasNull() ? -1 : index.get(k).count(ks, range.getStart(), range.getEnd()));
-                })
-        );
+                    endTrace(ks);
+                }
+            }));
+        }
         return response;
     }
 
@@ -132,13 +324,17 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
     @Override
     public RangeQueryResponse count(final T t, List<String> indexIds, List<QueryRange<K>> ranges) {
         RangeQueryResponse response = new RangeQueryResponse(RangeQueryResponse.QueryType.COMBINATION);
-        ranges.stream()
-                .forEach(range ->
-                indexIds.stream().forEach(ix -> {
-                    IndexKeySet ks = generators.get(ix).apply(t).drop();
+        VersionClock.Snapshot snapshot = clock.snapshot();
+        try {
+            for (String ix : indexIds) {
+                IndexKeySet ks = keys("count", ix, t).drop();
+                for (QueryRange<K> range : ranges)
                     response.add(ix, range, ks.hasNull() ? -1 : index.get(ix).count(ks, range.getStart(), range.getEnd()));
-                })
-        );
+                endTrace(ks);
+            }
+        } finally {
+            snapshot.close();
+        }
         return response;
     }
 
@@ -148,7 +344,10 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
     @Override
     public int count(String indexIdentifier, T t, K start, K end) {
         checkIndexAbsent(indexIdentifier);
-        return index.get(indexIdentifier).count(generators.get(indexIdentifier).apply(t).drop(), start, end);
+        IndexKeySet ks = keys("count", indexIdentifier, t).drop();
+        int result = ks.hasNull() ? 0 : index.get(indexIdentifier).count(ks, start, end);
+        endTrace(ks);
+        return result;
     }
 
     /**
@@ -157,10 +356,28 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
     @Override
     public int count(String indexIdentifier, IndexKeySet keys, K start, K end) {
         checkIndexAbsent(indexIdentifier);
-        return index.get(indexIdentifier).count(keys, start, end);
+        beginTrace("count", indexIdentifier);
+        int result = keys.hasNull() ? 0 : index.get(indexIdentifier).count(keys, start, end);
+        endTrace(keys);
+        return result;
     }
 
-    //TODO Whoa, both accumulate methods are incorrect!
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public MultiKeyResponse queryIn(String indexIdentifier, IndexKeySet keys, K start, K end) {
+        checkIndexAbsent(indexIdentifier);
+        VersionClock.Snapshot snapshot = clock.snapshot();
+        try {
+            beginTrace("queryIn", indexIdentifier);
+            MultiKeyResponse result = index.get(indexIdentifier).queryIn(keys, start, end);
+            endTrace(keys);
+            return result;
+        } finally {
+            snapshot.close();
+        }
+    }
 
     /**
      * @inheritDoc
@@ -168,7 +385,10 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
     @Override
     public int accumulate(String indexIdentifier, T t, K start, K end) {
         checkIndexAbsent(indexIdentifier);
-        return index.get(indexIdentifier).count(generators.get(indexIdentifier).apply(t).drop(), start, end);
+        IndexKeySet ks = keys("accumulate", indexIdentifier, t).drop();
+        int result = ks.hasNull() ? 0 : index.get(indexIdentifier).accumulate(ks, start, end);
+        endTrace(ks);
+        return result;
     }
 
     /**
@@ -177,7 +397,201 @@ public class MapMultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>>
     @Override
     public int accumulate(String indexIdentifier, IndexKeySet keys, K start, K end) {
         checkIndexAbsent(indexIdentifier);
-        return index.get(indexIdentifier).count(keys, start, end);
+        beginTrace("accumulate", indexIdentifier);
+        int result = keys.hasNull() ? 0 : index.get(indexIdentifier).accumulate(keys, start, end);
+        endTrace(keys);
+        return result;
+    }
+
+    /**
+     * Pin a snapshot of the whole index on the current thread. Until it is closed, every read made by this thread
+     * sees all the sub-indices as they were when the snapshot was taken, regardless of concurrent writes. Useful to
+     * get consistent results out of a batch of queries:
+     * <pre>
+     * try (VersionClock.Snapshot snapshot = index.snapshot()) {
+     *     // queries
+     * }
+     * </pre>
+     *
+     * @return the pinned snapshot, it must be closed by the same thread.
+     */
+    public VersionClock.Snapshot snapshot() {
+        return clock.snapshot();
+    }
+
+    /**
+     * Compress the large leaves of every sub-index that have not been written recently, see
+     * {@link RecursiveRangeQueryIndex#compact(PositionCodec, int, long)}.
+     *
+     * @param codec      the codec used to encode the positions, it should be lossless.
+     * @param minSize    the minimum number of occurrences of a compressed leaf.
+     * @param idleWrites the number of writes a leaf must have gone without being modified.
+     * @return the number of leaves compressed.
+     */
+    public int compact(PositionCodec<K> codec, int minSize, long idleWrites) {
+        int compacted = 0;
+        for (String id : identifiers)
+            compacted += index.get(id).compact(codec, minSize, idleWrites);
+        log.debug("Compressed {} leaves", compacted);
+        return compacted;
+    }
+
+    /**
+     * Merge another index into this one, for instance one built in parallel from another partition of the input.
+     * Every sub-index of <em>other</em> is merged into the sub-index with the same identifier (see
+     * {@link RecursiveRangeQueryIndex#merge(RecursiveRangeQueryIndex)}), sub-indices that are not defined in this
+     * index are defined with the key generator of <em>other</em>. The whole merge is a single write, <em>other</em>
+     * is read at a snapshot and left as it is.
+     *
+     * @param other the index to merge, its sub-indices must be backed by the same implementations as these ones.
+     * @throws IllegalArgumentException if <em>other</em> is this index or its sub-indices can't be merged into these.
+     */
+    public void merge(MapMultiCriteriaRangeQueryIndex<T, K> other) {
+        if (other == this)
+            throw new IllegalArgumentException("An index can't be merged into itself.");
+        VersionClock.Snapshot snapshot = other.snapshot();
+        try {
+            clock.beginWrite();
+            try {
+                for (String id : other.identifiers) {
+                    if (!generators.containsKey(id))
+                        define(id, other.generators.get(id));
+                    index.get(id).merge(other.index.get(id));
+                }
+            } finally {
+                clock.endWrite();
+            }
+        } finally {
+            snapshot.close();
+        }
+        log.debug("Merged {} sub-indices", other.identifiers.length);
+    }
+
+    /**
+     * Save every sub-index to a file, as seen by a snapshot, so that it can be merged later into another index with
+     * {@link #merge(Path, PositionCodec)}. Key generators are not saved. Daily indices can be saved as they are
+     * built and rolled up into weekly or monthly ones:
+     * <pre>
+     * MapMultiCriteriaRangeQueryIndex&lt;Event, Long&gt; week = ...; // same sub-indices as the daily ones
+     * for (Path day : days)
+     *     week.merge(day, PositionCodec.LONG);
+     * </pre>
+     *
+     * @param path  the file to write.
+     * @param codec the codec used to encode the positions, it should be lossless.
+     * @throws java.io.UncheckedIOException if the file can't be written.
+     */
+    public void save(Path path, PositionCodec<K> codec) {
+        VersionClock.Snapshot snapshot = clock.snapshot();
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            String[] ids = identifiers;
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(ids.length);
+            for (String id : ids)
+                out.writeUTF(id);
+            for (String id : ids)
+                index.get(id).save(out, codec);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Merge an index saved with {@link #save(Path, PositionCodec)} into this one, in a single write. The saved
+     * index is streamed into the sub-indices with the same identifiers, it is never loaded as a whole.
+     *
+     * @param path  the saved index.
+     * @param codec the codec the positions were saved with.
+     * @throws IllegalArgumentException     if the file is not a saved index or some of its sub-indices are not
+     *                                      defined in this index, in which case nothing is merged.
+     * @throws java.io.UncheckedIOException if the file can't be read.
+     */
+    public void merge(Path path, PositionCodec<K> codec) {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IllegalArgumentException(String.format("'%s' is not a saved index.", path));
+            String[] ids = new String[in.readInt()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = in.readUTF();
+                checkIndexAbsent(ids[i]);
+            }
+            clock.beginWrite();
+            try {
+                for (String id : ids)
+                    index.get(id).merge(in, codec);
+            } finally {
+                clock.endWrite();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        log.debug("Merged '{}'", path);
+    }
+
+    /**
+     * Get the filter of missing key tuples of a sub-index, see {@link RecursiveRangeQueryIndex#getKeyFilter()}.
+     *
+     * @param indexIdentifier the identifier of the sub-index.
+     * @return the filter of the sub-index, with its lookup counts, or null if it keeps none.
+     */
+    public KeyFilter getKeyFilter(String indexIdentifier) {
+        checkIndexAbsent(indexIdentifier);
+        return index.get(indexIdentifier).getKeyFilter();
+    }
+
+    /**
+     * Trace a sample of the queries made to this index: key extraction, every level of the sub-index walked and the
+     * leaf operation are timed and the traced queries slower than the threshold of the tracer are kept by it.
+     *
+     * @param tracer the tracer to use, null to stop tracing.
+     */
+    public void setTracer(QueryTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * @return the tracer of this index or null if queries are not traced.
+     */
+    public QueryTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Extract the keys of an element for a query, starting to trace it if it is sampled.
+     */
+    private IndexKeySet keys(String operation, String id, T t) {
+        QueryTrace trace = beginTrace(operation, id);
+        IndexKeySet keys = keys(id, t);
+        if (trace != null)
+            trace.stage("keys");
+        return keys;
+    }
+
+    private QueryTrace beginTrace(String operation, String id) {
+        QueryTracer tracer = this.tracer;
+        return tracer == null ? null : tracer.begin(operation, id);
+    }
+
+    private void endTrace(IndexKeySet keys) {
+        QueryTrace trace = QueryTrace.active();
+        if (trace != null)
+            trace.end(keys);
+    }
+
+    /**
+     * Extract the keys of an element into the key set owned by the current thread. The returned key set is only
+     * valid until the next call to this method on the same thread.
+     *
+     * @param id the identifier of the index whose generator to use.
+     * @param t  the element from which to extract the keys.
+     * @return the key set of the current thread filled with the keys of <em>t</em>.
+     */
+    private IndexKeySet keys(String id, T t) {
+        IndexKeySet keys = buffers.get().clear();
+        generators.get(id).generate(t, keys);
+        return keys;
     }
 
     /**
@@ -1,6 +1,8 @@
 package com.baldrichcorp.potts.index;
 
+import com.baldrichcorp.potts.index.query.Aggregate;
 import com.baldrichcorp.potts.index.query.IndexKeySet;
+import com.baldrichcorp.potts.index.query.MultiKeyResponse;
 import com.baldrichcorp.potts.index.query.QueryRange;
 import com.baldrichcorp.potts.index.query.RangeQueryResponse;
 
@@ -44,6 +46,57 @@ public interface MultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>
      */
     void add(T t, K pos);
 
+    /**
+     * Add an element to the sub-index with the given identifier along with a numeric measure for this occurrence.
+     * @param indexIdentifier the identifier of the index to add the element into.
+     * @param t the element to add.
+     * @param pos the position to add the element into.
+     * @param measure the measure attached to this occurrence.
+     */
+    void add(final String indexIdentifier, T t, K pos, double measure);
+
+    /**
+     * Add an element to all existing sub-indices along with a numeric measure for this occurrence.
+     * @param t the element to add.
+     * @param pos the position to add the element into.
+     * @param measure the measure attached to this occurrence.
+     */
+    void add(T t, K pos, double measure);
+
+    /**
+     * Remove one occurrence of an element at the given position from the sub-index with the given identifier.
+     * @param indexIdentifier the identifier of the index to remove the element from.
+     * @param t the element to remove.
+     * @param pos the position of the occurrence to remove.
+     * @return <em>true</em> if an occurrence was removed, <em>false</em> if there was none at <em>pos</em>.
+     */
+    boolean remove(final String indexIdentifier, T t, K pos);
+
+    /**
+     * Remove one occurrence of an element at the given position from all existing sub-indices.
+     * @param t the element to remove.
+     * @param pos the position of the occurrence to remove.
+     */
+    void remove(T t, K pos);
+
+    /**
+     * Move one occurrence of an element from a position to another on the sub-index with the given identifier.
+     * @param indexIdentifier the identifier of the index that holds the element.
+     * @param t the element to move.
+     * @param oldPos the current position of the occurrence.
+     * @param newPos the new position of the occurrence.
+     * @return <em>true</em> if an occurrence was moved, <em>false</em> if there was none at <em>oldPos</em>.
+     */
+    boolean move(final String indexIdentifier, T t, K oldPos, K newPos);
+
+    /**
+     * Move one occurrence of an element from a position to another on all existing sub-indices.
+     * @param t the element to move.
+     * @param oldPos the current position of the occurrence.
+     * @param newPos the new position of the occurrence.
+     */
+    void move(T t, K oldPos, K newPos);
+
     /**
      * Define a new sub-index, behavior is undefined if the particular identifier has already been used.
      * @param indexIdentifier the identifier of the new sub-index.
@@ -51,6 +104,14 @@ public interface MultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>
      */
     void define(String indexIdentifier, Function<T, IndexKeySet> keyGenerator);
 
+    /**
+     * Define a new sub-index whose keys are written by the generator into a reusable key set, behavior is undefined
+     * if the particular identifier has already been used.
+     * @param indexIdentifier the identifier of the new sub-index.
+     * @param keyGenerator generator that appends the keys of an element to a key set.
+     */
+    void define(String indexIdentifier, KeyGenerator<T> keyGenerator);
+
     /**
      * Find the number of occurrences of the given element on the specified index that fall within the given range.
      * @param indexIdentifier the identifier of the sub-index to query.
@@ -67,6 +128,7 @@ public interface MultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>
      * @param range the ranges on which to perform the queries.
      * @return A {@code RangeQueryResponse} with the results.
      */
+    @SuppressWarnings("unchecked")
     RangeQueryResponse query(final T t, QueryRange<K>... range);
 
     /**
@@ -82,6 +144,30 @@ public interface MultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>
      */
     RangeQueryResponse query(final T t, List<String> indexIds, List<QueryRange<K>> ranges);
 
+    /**
+     * Aggregate the measures of the occurrences of the given element on the specified index that fall within the
+     * given range.
+     * @param indexIdentifier the identifier of the sub-index to query.
+     * @param t the element to search for.
+     * @param start lower bound of the query range.
+     * @param end upper bound of the query range.
+     * @return the sum, minimum, maximum and average of the measures of <em>t</em> in the given range.
+     */
+    Aggregate aggregate(final String indexIdentifier, T t, K start, K end);
+
+    /**
+     * Perform aggregations on multiple indexes and multiple ranges (cross product) and return a
+     * {@code RangeQueryResponse} with the results.
+     *
+     * @see #aggregate(String, Object, Comparable, Comparable)
+     *
+     * @param t the object from which the indexing keys will be extracted.
+     * @param indexIds the ids of the indices to query.
+     * @param ranges the ranges on which to perform the aggregations.
+     * @return A {@code RangeQueryResponse} with the results.
+     */
+    RangeQueryResponse aggregate(final T t, List<String> indexIds, List<QueryRange<K>> ranges);
+
     /**
      * Perform counts on multiple indexes and multiple ranges (cross product) and return a {@code RangeQueryResponse}
      * with the results.
@@ -112,6 +198,7 @@ public interface MultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>
      * @param range the ranges on which to perform the queries.
      * @return A {@code RangeQueryResponse} with the results.
      */
+    @SuppressWarnings("unchecked")
     RangeQueryResponse count(final T t, QueryRange<K>... range);
 
     /**
@@ -132,7 +219,7 @@ public interface MultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>
      * @param t the element from where to obtain the prefix.
      * @param start lower bound of the query range.
      * @param end upper bound of the query range.
-     * @return the number of different instances <em>t</em> that fall in the given range.
+     * @return the number of occurrences under the prefix that fall in the given range.
      */
     int accumulate(final String indexIdentifier, T t, K start, K end);
 
@@ -143,8 +230,20 @@ public interface MultiCriteriaRangeQueryIndex<T, K extends Comparable<? super K>
      * @param keys the keys to use for the search.
      * @param start lower bound of the query range.
      * @param end upper bound of the query range.
-     * @return the number of different instances <em>t</em> that fall in the given range.
+     * @return the number of occurrences under the prefix that fall in the given range.
      */
     int accumulate(final String indexIdentifier, IndexKeySet keys, K start, K end);
 
+    /**
+     * Count the occurrences within the given range of every key tuple a key set stands for, in a single call. Levels
+     * of the key set may hold an {@code AnyOf} with several values (for instance, all the emails linked to an
+     * account), prefixes shared by several tuples are traversed once.
+     * @param indexIdentifier the identifier of the sub-index.
+     * @param keys the keys to use for the search, levels may hold an {@code AnyOf}.
+     * @param start lower bound of the query range.
+     * @param end upper bound of the query range.
+     * @return the number of occurrences of every tuple that fall in the given range and their sum.
+     */
+    MultiKeyResponse queryIn(final String indexIdentifier, IndexKeySet keys, K start, K end);
+
 }
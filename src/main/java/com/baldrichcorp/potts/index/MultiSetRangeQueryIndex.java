@@ -1,18 +1,25 @@
 package com.baldrichcorp.potts.index;
 
-import com.google.common.collect.BoundType;
-import com.google.common.collect.TreeMultiset;
+import com.baldrichcorp.potts.index.query.Aggregate;
 
-import java.time.Duration;
-import java.time.Instant;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 /**
- * Implementation of a {@code RangeQueryIndex} based on MultiSets.
+ * Implementation of a {@code RangeQueryIndex} based on MultiSets. The positions of every element are kept in a
+ * {@code Leaf} that also maintains the aggregates of the measures attached to them. Leaves adapt their
+ * representation to the number of occurrences of the element, so the long tail of elements observed once or twice
+ * stays cheap while frequently observed elements are kept in trees.
+ * <p>
+ * Leaves are never modified in place, every write installs a new version of the leaf of the element, so the index can
+ * be read while it is being written and readers that pinned a snapshot of the {@code VersionClock} see the leaves as
+ * they were when the snapshot was taken.
+ * <p>
+ * Nodes can optionally keep their leaves within the memory budget of a {@code SpillStore}, which spills the least
+ * recently used leaves to disk and loads them back when they are accessed.
  *
  * @param <T> The type of the elements that this index can hold.
  * @param <K> The type of the criterion used for comparison in queries.
@@ -20,9 +27,36 @@ import java.util.concurrent.atomic.LongAdder;
  */
 public class MultiSetRangeQueryIndex<T, K extends Comparable<? super K>> implements RangeQueryIndex<T, K> {
 
-    private Map<T, TreeMultiset<K>> index;
+    private final VersionClock clock;
+    private final SpillStore<K> store;
+    private Map<T, Versioned<Leaf<K>>> index;
+
     public MultiSetRangeQueryIndex() {
-        this.index = new HashMap<>();
+        this(new VersionClock());
+    }
+
+    /**
+     * Initializes a new {@code MultiSetRangeQueryIndex} that tags its writes using the given clock.
+     *
+     * @param clock the clock shared by all the nodes of the index this one belongs to.
+     */
+    public MultiSetRangeQueryIndex(VersionClock clock) {
+        this(clock, null);
+    }
+
+    /**
+     * Initializes a new {@code MultiSetRangeQueryIndex} whose leaves are kept within the memory budget of a
+     * {@code SpillStore}.
+     *
+     * @param clock the clock shared by all the nodes of the index this one belongs to.
+     * @param store the store that cold leaves are spilled to, null to keep every leaf in memory.
+     */
+    public MultiSetRangeQueryIndex(VersionClock clock, SpillStore<K> store) {
+        this.clock = clock;
+        this.store = store;
+        this.index = new ConcurrentHashMap<>();
+        if (store != null)
+            store.register(this);
     }
 
     /**
@@ -30,8 +64,72 @@ public class MultiSetRangeQueryIndex<T, K extends Comparable<? super K>> impleme
      */
     @Override
     public void add(T t, K pos) {
-        index.putIfAbsent(t, TreeMultiset.<K> create());
-        index.get(t).add(pos);
+        add(t, pos, Leaf.UNMEASURED);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(T t, K pos, double measure) {
+        clock.beginWrite();
+        try {
+            Versioned<Leaf<K>> current = index.get(t);
+            Leaf<K> observations = Versioned.at(current, VersionClock.LATEST);
+            install(t, current, (observations == null ? Leaf.<K> empty() : observations).with(pos, measure));
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean remove(T t, K pos) {
+        clock.beginWrite();
+        try {
+            Versioned<Leaf<K>> current = index.get(t);
+            Leaf<K> observations = Versioned.at(current, VersionClock.LATEST);
+            if (observations == null)
+                return false;
+            Leaf<K> remaining = observations.without(pos);
+            if (remaining == observations)
+                return false;
+            install(t, current, remaining);
+            return true;
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean move(T t, K oldPos, K newPos) {
+        clock.beginWrite();
+        try {
+            Versioned<Leaf<K>> current = index.get(t);
+            Leaf<K> observations = Versioned.at(current, VersionClock.LATEST);
+            if (observations == null)
+                return false;
+            Leaf<K> remaining = observations.without(oldPos);
+            if (remaining == observations)
+                return false;
+            install(t, current, remaining.with(newPos, observations.measureAt(oldPos)));
+            return true;
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
     }
 
     /**
@@ -39,10 +137,18 @@ public class MultiSetRangeQueryIndex<T, K extends Comparable<? super K>> impleme
      */
     @Override
     public int query(T t, K left, K right) {
-        TreeMultiset<K> observations = index.get(t);
+        return count(observations(t, clock.readVersion()), left, right);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(T t, K left, K right) {
+        Leaf<K> observations = observations(t, clock.readVersion());
         if (observations == null || left.compareTo(right) > 0)
-            return 0;
-        return observations.subMultiset(left, BoundType.CLOSED, right, BoundType.CLOSED).size();
+            return Aggregate.EMPTY;
+        return observations.aggregate(left, right);
     }
 
     /**
@@ -50,9 +156,11 @@ public class MultiSetRangeQueryIndex<T, K extends Comparable<? super K>> impleme
      */
     @Override
     public int accumulate(K left, K right) {
+        visited(index.size());
+        long version = clock.readVersion();
         LongAdder total = new LongAdder();
-        index.entrySet().parallelStream().forEach(e ->
-                total.add(query(e.getKey(), left, right))
+        index.values().parallelStream().forEach(v ->
+                total.add(count(Versioned.at(v, version), left, right))
         );
         return total.intValue();
     }
@@ -62,6 +170,173 @@ public class MultiSetRangeQueryIndex<T, K extends Comparable<? super K>> impleme
      */
     @Override
     public int count(K left, K right) {
-        return index.keySet().stream().mapToInt(k -> query(k, left, right) > 0 ? 1 : 0).sum();
+        visited(index.size());
+        long version = clock.readVersion();
+        return index.values().stream().mapToInt(v -> count(Versioned.at(v, version), left, right) > 0 ? 1 : 0).sum();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int compact(PositionCodec<K> codec, int minSize, long idleWrites) {
+        return compactIdleSince(codec, minSize, clock.published() - idleWrites);
+    }
+
+    /**
+     * Compress the leaves that hold at least <em>minSize</em> occurrences and were last written at or before the
+     * given version. Each leaf is compressed in its own write, so writers are never blocked for long.
+     */
+    int compactIdleSince(PositionCodec<K> codec, int minSize, long version) {
+        int compacted = 0;
+        for (T t : index.keySet()) {
+            clock.beginWrite();
+            try {
+                Versioned<Leaf<K>> current = index.get(t);
+                Leaf<K> observations = Versioned.at(current, VersionClock.LATEST);
+                if (observations == null || observations instanceof BlockLeaf || observations instanceof SpilledLeaf
+                        || observations.size() < minSize || current.version > version)
+                    continue;
+                install(t, current, BlockLeaf.of(observations, codec));
+                compacted++;
+            } finally {
+                clock.endWrite();
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Add the footprint of every leaf that could be spilled to the bucket of its age, in sweeps since it was last
+     * accessed.
+     */
+    void measureAges(long[] bytes) {
+        index.values().forEach(chain -> {
+            if (store.spillable(chain.value))
+                bytes[store.age(chain)] += chain.value.footprint();
+        });
+    }
+
+    /**
+     * Spill the leaves that were last accessed at least <em>minAge</em> sweeps ago until the given number of bytes
+     * is freed. Leaves are written to the file outside of any write, then each stub is installed in a short write of
+     * its own unless the leaf was written in the meantime.
+     *
+     * @return the number of bytes freed.
+     */
+    long spill(int minAge, long bytes) {
+        long freed = 0;
+        for (T t : index.keySet()) {
+            if (freed >= bytes || store.isClosed())
+                break;
+            Versioned<Leaf<K>> current = index.get(t);
+            Leaf<K> observations = current == null ? null : current.value;
+            if (!store.spillable(observations) || store.age(current) < minAge)
+                continue;
+            SpilledLeaf<K> spilled = store.spill(observations);
+            clock.beginWrite();
+            try {
+                if (index.get(t) != current) {
+                    store.discard(spilled);
+                    continue;
+                }
+                install(t, current, spilled);
+                freed += observations.footprint() - spilled.footprint();
+            } finally {
+                clock.endWrite();
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Merge occurrences into the leaf of an element in a new write.
+     *
+     * @param t    the element.
+     * @param leaf the occurrences to merge.
+     */
+    void merge(T t, Leaf<K> leaf) {
+        clock.beginWrite();
+        try {
+            Versioned<Leaf<K>> current = index.get(t);
+            Leaf<K> observations = Versioned.at(current, VersionClock.LATEST);
+            install(t, current, observations == null ? leaf : Leaf.merge(observations, leaf));
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * Visit the leaf of every element visible to the current thread.
+     *
+     * @param action the action that receives each element and its leaf.
+     */
+    void forEachLeaf(BiConsumer<? super T, Leaf<K>> action) {
+        long version = clock.readVersion();
+        index.forEach((t, v) -> {
+            Leaf<K> observations = Versioned.at(v, version);
+            if (observations != null)
+                action.accept(t, observations);
+        });
+    }
+
+    /**
+     * Check whether an element was left without observations but is still kept for the pinned snapshots.
+     */
+    boolean isRetired(T t) {
+        Versioned<Leaf<K>> chain = index.get(t);
+        return chain != null && chain.value == null;
+    }
+
+    /**
+     * @return the elements of the index, including those only visible to pinned snapshots.
+     */
+    Set<T> elements() {
+        return index.keySet();
+    }
+
+    private Leaf<K> observations(T t, long version) {
+        visited(1);
+        Versioned<Leaf<K>> chain = index.get(t);
+        if (store != null && chain != null)
+            store.touch(chain);
+        return Versioned.at(chain, version);
+    }
+
+    /**
+     * Record the number of elements visited on the trace of the current query, if it is being traced.
+     */
+    private static void visited(int elements) {
+        QueryTrace trace = QueryTrace.active();
+        if (trace != null)
+            trace.visited(elements);
+    }
+
+    private int count(Leaf<K> observations, K left, K right) {
+        return observations == null ? 0 : observations.count(left, right);
+    }
+
+    /**
+     * Install a new version of the leaf of an element, elements left without observations are discarded once no
+     * snapshot can see them, right away if no snapshot is pinned or when their tombstone is reclaimed otherwise. The
+     * change in the footprint of the latest leaves is charged to the spill store, if any.
+     */
+    private void install(T t, Versioned<Leaf<K>> current, Leaf<K> observations) {
+        Versioned<Leaf<K>> head = clock.install(current, observations.isEmpty() ? null : observations);
+        if (head == null)
+            index.remove(t);
+        else
+            index.put(t, head);
+        if (head != null && head.value == null)
+            clock.retire(() -> index.remove(t, head));
+        if (store == null)
+            return;
+        if (head != null)
+            store.touch(head);
+        Leaf<K> replaced = current == null ? null : current.value;
+        if (replaced instanceof SpilledLeaf)
+            store.discard((SpilledLeaf<K>) replaced);
+        store.charge((head == null || head.value == null ? 0 : observations.footprint())
+                - (replaced == null ? 0 : replaced.footprint()));
     }
 }
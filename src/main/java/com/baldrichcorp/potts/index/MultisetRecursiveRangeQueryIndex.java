@@ -1,13 +1,36 @@
 package com.baldrichcorp.potts.index;
 
+import com.baldrichcorp.potts.index.query.Aggregate;
+import com.baldrichcorp.potts.index.query.AnyOf;
 import com.baldrichcorp.potts.index.query.IndexKeySet;
+import com.baldrichcorp.potts.index.query.MultiKeyResponse;
 
-import java.util.HashMap;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * A Recursive {@code RangeQueryIndex} that allows searching and indexing using an arbitrary number
- * of keys represented by a {@code IndexKeySet}.
+ * of keys represented by a {@code IndexKeySet}. Key sets are read with {@link IndexKeySet#get(int)}, they are
+ * never consumed, so the same key set can be used for several operations.
+ * <p>
+ * Branches are kept in concurrent maps and leaves are versioned (see {@code VersionClock}), so the index can be
+ * queried while it is being written.
+ * <p>
+ * Nodes can optionally keep a {@code Rollup} of their occurrences in time buckets, in which case wide
+ * {@link #accumulate(IndexKeySet, Comparable, Comparable)} queries are answered from the buckets instead of from
+ * every leaf of the node.
+ * <p>
+ * The index can also keep a {@code KeyFilter} of the full key tuples added to it, in which case lookups of tuples that
+ * were never added ({@link #query(IndexKeySet, Comparable, Comparable)} and
+ * {@link #aggregate(IndexKeySet, Comparable, Comparable)}) are answered without walking any branch.
+ * <p>
+ * Leaves can be kept within the memory budget of a {@code SpillStore}, so indices larger than the heap spill their
+ * least recently used leaves to disk instead of running out of memory.
  *
  * @param <T> the type of the elements that can be added to the index.
  * @param <K> the type of the criterion used for comparison in queries.
@@ -16,21 +39,184 @@ import java.util.Map;
  */
 public class MultisetRecursiveRangeQueryIndex<T, K extends Comparable<? super K>> implements RecursiveRangeQueryIndex<T, K> {
 
-    private RangeQueryIndex<Object, K> index = new MultiSetRangeQueryIndex<>();
+    private final VersionClock clock;
+    private final Rollup<K> rollup;
+    private final Rollup<K>.Buckets buckets;
+    private volatile long bucketsVersion;
+    private final KeyFilter filter;
+    private final SpillStore<K> store;
 
-    private Map<Object, MultisetRecursiveRangeQueryIndex<T, K>> branches = new HashMap<>();
+    private MultiSetRangeQueryIndex<Object, K> index;
+
+    private Map<Object, MultisetRecursiveRangeQueryIndex<T, K>> branches = new ConcurrentHashMap<>();
+
+    public MultisetRecursiveRangeQueryIndex() {
+        this(new VersionClock());
+    }
+
+    /**
+     * Initializes a new {@code MultisetRecursiveRangeQueryIndex} that tags its writes using the given clock.
+     *
+     * @param clock the clock shared by all the nodes of the index, snapshots are taken from it.
+     */
+    public MultisetRecursiveRangeQueryIndex(VersionClock clock) {
+        this(clock, null);
+    }
+
+    /**
+     * Initializes a new {@code MultisetRecursiveRangeQueryIndex} whose nodes keep their occurrences in the time
+     * buckets of the given rollup.
+     *
+     * @param clock  the clock shared by all the nodes of the index, snapshots are taken from it.
+     * @param rollup the bucket resolutions kept by every node, null to keep none.
+     */
+    public MultisetRecursiveRangeQueryIndex(VersionClock clock, Rollup<K> rollup) {
+        this(clock, rollup, (KeyFilter) null, null);
+    }
+
+    /**
+     * Initializes a new {@code MultisetRecursiveRangeQueryIndex} that checks full key tuples against a
+     * {@code KeyFilter} before looking them up.
+     *
+     * @param clock             the clock shared by all the nodes of the index, snapshots are taken from it.
+     * @param rollup            the bucket resolutions kept by every node, null to keep none.
+     * @param falsePositiveRate the rate of lookups of absent tuples that the filter lets through, in (0, 1).
+     */
+    public MultisetRecursiveRangeQueryIndex(VersionClock clock, Rollup<K> rollup, double falsePositiveRate) {
+        this(clock, rollup, new KeyFilter(falsePositiveRate), null);
+    }
+
+    /**
+     * Initializes a new {@code MultisetRecursiveRangeQueryIndex} whose nodes keep their leaves within the memory
+     * budget of the given store, spilling the least recently used ones to its file.
+     *
+     * @param clock  the clock shared by all the nodes of the index, snapshots are taken from it.
+     * @param rollup the bucket resolutions kept by every node, null to keep none.
+     * @param store  the store shared by all the nodes of the index, null to keep every leaf in memory.
+     */
+    public MultisetRecursiveRangeQueryIndex(VersionClock clock, Rollup<K> rollup, SpillStore<K> store) {
+        this(clock, rollup, null, store);
+    }
+
+    private MultisetRecursiveRangeQueryIndex(VersionClock clock, Rollup<K> rollup, KeyFilter filter, SpillStore<K> store) {
+        this.clock = clock;
+        this.rollup = rollup;
+        this.buckets = rollup == null ? null : rollup.buckets();
+        this.filter = filter;
+        this.store = store;
+        this.index = new MultiSetRangeQueryIndex<>(clock, store);
+    }
 
     /**
      * @inheritDoc
      */
     @Override
     public void add(IndexKeySet keys, K pos) {
-        if (keys.isLast()) {
-            index.add(keys.pop(), pos);
+        add(keys, pos, Leaf.UNMEASURED);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(IndexKeySet keys, K pos, double measure) {
+        clock.beginWrite();
+        try {
+            int last = keys.size() - 1;
+            MultisetRecursiveRangeQueryIndex<T, K> node = branch(keys, last);
+            node.index.add(keys.get(last), pos, measure);
+            if (node.buckets != null) {
+                node.bucketsVersion = clock.writing();
+                node.buckets.add(pos);
+            }
+            if (filter != null && filter.add(keys))
+                filter.rebuild(this::forEachTuple);
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean remove(IndexKeySet keys, K pos) {
+        clock.beginWrite();
+        try {
+            if (!remove(keys, 0, pos))
+                return false;
+            int last = keys.size() - 1;
+            MultisetRecursiveRangeQueryIndex<T, K> node = walk(keys, last, null);
+            if (node != null && node.index.isRetired(keys.get(last))) {
+                Object[] tuple = tuple(keys);
+                clock.retire(() -> prune(tuple, 0));
+            }
+            return true;
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    private boolean remove(IndexKeySet keys, int level, K pos) {
+        if (level == keys.size() - 1) {
+            boolean removed = index.remove(keys.get(level), pos);
+            if (removed && buckets != null) {
+                bucketsVersion = clock.writing();
+                buckets.remove(pos);
+            }
+            return removed;
+        }
+        MultisetRecursiveRangeQueryIndex<T, K> branch = branches.get(keys.get(level));
+        if (branch == null)
+            return false;
+        boolean removed = branch.remove(keys, level + 1, pos);
+        if (branch.isEmpty())
+            branches.remove(keys.get(level));
+        return removed;
+    }
+
+    /**
+     * Prune the branches of a tuple left empty once the tombstone of its leaf was reclaimed.
+     */
+    private void prune(Object[] tuple, int level) {
+        if (level == tuple.length - 1)
             return;
+        MultisetRecursiveRangeQueryIndex<T, K> branch = branches.get(tuple[level]);
+        if (branch == null)
+            return;
+        branch.prune(tuple, level + 1);
+        if (branch.isEmpty())
+            branches.remove(tuple[level]);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean move(IndexKeySet keys, K oldPos, K newPos) {
+        clock.beginWrite();
+        try {
+            int last = keys.size() - 1;
+            MultisetRecursiveRangeQueryIndex<T, K> node = walk(keys, last, null);
+            if (node == null || !node.index.move(keys.get(last), oldPos, newPos))
+                return false;
+            if (node.buckets != null) {
+                node.bucketsVersion = clock.writing();
+                node.buckets.remove(oldPos);
+                node.buckets.add(newPos);
+            }
+            return true;
+        } finally {
+            clock.endWrite();
         }
-        branches.putIfAbsent(keys.peek(), new MultisetRecursiveRangeQueryIndex<>());
-        branches.get(keys.pop()).add(keys, pos);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isEmpty() {
+        return branches.isEmpty() && index.isEmpty();
     }
 
     /**
@@ -38,25 +224,93 @@ public class MultisetRecursiveRangeQueryIndex<T, K extends Comparable<? super K>
      */
     @Override
     public int query(IndexKeySet keys, K start, K end) {
-        if (keys.isLast()) {
-            return index.query(keys.pop(), start, end);
-        }
-        if (!branches.containsKey(keys.peek()))
+        QueryTrace trace = QueryTrace.active();
+        if (filtered(keys, trace))
             return 0;
-        return branches.get(keys.pop()).query(keys, start, end);
+        int last = keys.size() - 1;
+        MultisetRecursiveRangeQueryIndex<T, K> node = walk(keys, last, trace);
+        int result = node == null ? 0 : node.index.query(keys.get(last), start, end);
+        if (trace != null)
+            trace.stage("leaf");
+        return result;
     }
 
     /**
      * @inheritDoc
      */
     @Override
-    public int accumulate(IndexKeySet keys, K start, K end) {
-        if (!keys.hasNext()) {
-            return index.accumulate(start, end);
+    public Aggregate aggregate(IndexKeySet keys, K start, K end) {
+        QueryTrace trace = QueryTrace.active();
+        if (filtered(keys, trace))
+            return Aggregate.EMPTY;
+        int last = keys.size() - 1;
+        MultisetRecursiveRangeQueryIndex<T, K> node = walk(keys, last, trace);
+        Aggregate result = node == null ? Aggregate.EMPTY : node.index.aggregate(keys.get(last), start, end);
+        if (trace != null)
+            trace.stage("leaf");
+        return result;
+    }
+
+    /**
+     * @inheritDoc
+     * <p>
+     * Every branch shared by several tuples is walked once.
+     */
+    @Override
+    public MultiKeyResponse queryIn(IndexKeySet keys, K start, K end) {
+        QueryTrace trace = QueryTrace.active();
+        MultiKeyResponse response = new MultiKeyResponse();
+        queryIn(keys, 0, new Object[keys.size()], start, end, response, trace);
+        if (trace != null)
+            trace.stage("leaf");
+        return response;
+    }
+
+    private void queryIn(IndexKeySet keys, int level, Object[] tuple, K start, K end, MultiKeyResponse response, QueryTrace trace) {
+        Object key = keys.get(level);
+        boolean last = level == keys.size() - 1;
+        for (int i = 0; i < AnyOf.size(key); i++) {
+            tuple[level] = AnyOf.get(key, i);
+            if (last) {
+                response.add(tuple, index.query(tuple[level], start, end));
+                continue;
+            }
+            MultisetRecursiveRangeQueryIndex<T, K> branch = branches.get(tuple[level]);
+            if (trace != null)
+                trace.level(level, tuple[level]);
+            if (branch != null)
+                branch.queryIn(keys, level + 1, tuple, start, end, response, trace);
+            else
+                absent(keys, level + 1, tuple, response);
         }
-        if (!branches.containsKey(keys.peek()))
-            return 0;
-        return branches.get(keys.pop()).accumulate(keys, start, end);
+    }
+
+    /**
+     * Add a zero to the response for every tuple below a missing branch.
+     */
+    private static void absent(IndexKeySet keys, int level, Object[] tuple, MultiKeyResponse response) {
+        if (level == keys.size()) {
+            response.add(tuple, 0);
+            return;
+        }
+        Object key = keys.get(level);
+        for (int i = 0; i < AnyOf.size(key); i++) {
+            tuple[level] = AnyOf.get(key, i);
+            absent(keys, level + 1, tuple, response);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int accumulate(IndexKeySet keys, K start, K end) {
+        QueryTrace trace = QueryTrace.active();
+        MultisetRecursiveRangeQueryIndex<T, K> node = walk(keys, keys.size(), trace);
+        int result = node == null ? 0 : node.accumulate(start, end);
+        if (trace != null)
+            trace.stage("leaf");
+        return result;
     }
 
     /**
@@ -64,12 +318,209 @@ public class MultisetRecursiveRangeQueryIndex<T, K extends Comparable<? super K>
      */
     @Override
     public int count(IndexKeySet keys, K start, K end) {
-        if (!keys.hasNext()) {
-            return index.count(start, end);
+        QueryTrace trace = QueryTrace.active();
+        MultisetRecursiveRangeQueryIndex<T, K> node = walk(keys, keys.size(), trace);
+        int result = node == null ? 0 : node.index.count(start, end);
+        if (trace != null)
+            trace.stage("leaf");
+        return result;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int compact(PositionCodec<K> codec, int minSize, long idleWrites) {
+        return compactIdleSince(codec, minSize, clock.published() - idleWrites);
+    }
+
+    private int compactIdleSince(PositionCodec<K> codec, int minSize, long version) {
+        int compacted = index.compactIdleSince(codec, minSize, version);
+        for (MultisetRecursiveRangeQueryIndex<T, K> branch : branches.values())
+            compacted += branch.compactIdleSince(codec, minSize, version);
+        return compacted;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void merge(RecursiveRangeQueryIndex<T, K> other) {
+        if (other == this || !(other instanceof MultisetRecursiveRangeQueryIndex))
+            throw new IllegalArgumentException(String.format("Can't merge a %s into this index.", other.getClass().getSimpleName()));
+        MultisetRecursiveRangeQueryIndex<T, K> source = (MultisetRecursiveRangeQueryIndex<T, K>) other;
+        VersionClock.Snapshot snapshot = source.clock.snapshot();
+        try {
+            clock.beginWrite();
+            try {
+                source.forEachLeaf(new Object[0], this::merge);
+            } finally {
+                clock.endWrite();
+            }
+        } finally {
+            snapshot.close();
         }
-        if (!branches.containsKey(keys.peek()))
-            return 0;
-        return branches.get(keys.pop()).count(keys, start, end);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void save(ObjectOutput out, PositionCodec<K> codec) {
+        VersionClock.Snapshot snapshot = clock.snapshot();
+        try {
+            forEachLeaf(new Object[0], (keys, leaf) -> IndexFile.write(out, keys, leaf, codec));
+        } finally {
+            snapshot.close();
+        }
+        IndexFile.end(out);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void merge(ObjectInput in, PositionCodec<K> codec) {
+        clock.beginWrite();
+        try {
+            for (IndexKeySet keys = IndexFile.readKeys(in); keys != null; keys = IndexFile.readKeys(in))
+                merge(keys, IndexFile.readLeaf(in, codec));
+        } finally {
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * Merge the occurrences of a full key tuple into the index.
+     */
+    private void merge(IndexKeySet keys, Leaf<K> leaf) {
+        int last = keys.size() - 1;
+        MultisetRecursiveRangeQueryIndex<T, K> node = branch(keys, last);
+        node.index.merge(keys.get(last), leaf);
+        if (node.buckets != null) {
+            node.bucketsVersion = clock.writing();
+            leaf.forEach((pos, measure) -> node.buckets.add(pos));
+        }
+        if (filter != null && filter.add(keys))
+            filter.rebuild(this::forEachTuple);
+    }
+
+    /**
+     * Visit every full key tuple visible to the current thread with its leaf. The key sets given to the action are
+     * only valid until it returns.
+     */
+    private void forEachLeaf(Object[] prefix, BiConsumer<IndexKeySet, Leaf<K>> action) {
+        Object[] tuple = Arrays.copyOf(prefix, prefix.length + 1);
+        IndexKeySet keys = IndexKeySet.of(tuple);
+        index.forEachLeaf((key, leaf) -> {
+            tuple[prefix.length] = key;
+            action.accept(keys, leaf);
+        });
+        for (Map.Entry<Object, MultisetRecursiveRangeQueryIndex<T, K>> branch : branches.entrySet()) {
+            tuple[prefix.length] = branch.getKey();
+            branch.getValue().forEachLeaf(tuple.clone(), action);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public KeyFilter getKeyFilter() {
+        return filter;
+    }
+
+    /**
+     * Check a full key tuple against the filter of the index.
+     *
+     * @return <em>true</em> if the tuple was never added to the index.
+     */
+    private boolean filtered(IndexKeySet keys, QueryTrace trace) {
+        if (filter == null || filter.mightContain(keys))
+            return false;
+        if (trace != null)
+            trace.stage("filter");
+        return true;
+    }
+
+    /**
+     * Feed every full key tuple of the index, including those only visible to pinned snapshots, to an action.
+     */
+    private void forEachTuple(Consumer<IndexKeySet> action) {
+        forEachTuple(new Object[0], action);
+    }
+
+    private void forEachTuple(Object[] prefix, Consumer<IndexKeySet> action) {
+        Object[] tuple = Arrays.copyOf(prefix, prefix.length + 1);
+        for (Object key : index.elements()) {
+            tuple[prefix.length] = key;
+            action.accept(IndexKeySet.of(tuple));
+        }
+        for (Map.Entry<Object, MultisetRecursiveRangeQueryIndex<T, K>> branch : branches.entrySet()) {
+            tuple[prefix.length] = branch.getKey();
+            branch.getValue().forEachTuple(tuple.clone(), action);
+        }
+    }
+
+    /**
+     * Accumulate the occurrences of the leaves of this node, from the buckets if possible. Buckets are not versioned,
+     * so readers of a pinned snapshot only use them if no write changed them after the snapshot was taken. Writes
+     * stamp the buckets before changing them, so the stamp read after counting covers any change seen by the count.
+     */
+    private int accumulate(K start, K end) {
+        if (buckets != null) {
+            int total = buckets.count(start, end);
+            if (total >= 0 && bucketsVersion <= clock.readVersion())
+                return total;
+        }
+        return index.accumulate(start, end);
+    }
+
+    /**
+     * Follow the branches given by the first keys of the key set, creating the ones that are missing. Must be
+     * called within a write.
+     *
+     * @param keys  the keys to follow.
+     * @param depth the number of keys to follow.
+     * @return the node reached after following <em>depth</em> keys.
+     */
+    private MultisetRecursiveRangeQueryIndex<T, K> branch(IndexKeySet keys, int depth) {
+        MultisetRecursiveRangeQueryIndex<T, K> node = this;
+        for (int i = 0; i < depth; i++) {
+            MultisetRecursiveRangeQueryIndex<T, K> branch = node.branches.get(keys.get(i));
+            if (branch == null) {
+                branch = new MultisetRecursiveRangeQueryIndex<>(clock, rollup, null, store);
+                node.branches.put(keys.get(i), branch);
+            }
+            node = branch;
+        }
+        return node;
+    }
+
+    /**
+     * Follow the branches given by the first keys of the key set.
+     *
+     * @param keys  the keys to follow.
+     * @param depth the number of keys to follow.
+     * @param trace the trace on which to record each level walked, may be null.
+     * @return the node reached after following <em>depth</em> keys or null if there is no such node.
+     */
+    private MultisetRecursiveRangeQueryIndex<T, K> walk(IndexKeySet keys, int depth, QueryTrace trace) {
+        MultisetRecursiveRangeQueryIndex<T, K> node = this;
+        for (int i = 0; i < depth && node != null; i++) {
+            node = node.branches.get(keys.get(i));
+            if (trace != null)
+                trace.level(i, keys.get(i));
+        }
+        return node;
+    }
+
+    private static Object[] tuple(IndexKeySet keys) {
+        Object[] tuple = new Object[keys.size()];
+        for (int i = 0; i < tuple.length; i++)
+            tuple[i] = keys.get(i);
+        return tuple;
     }
 
 }
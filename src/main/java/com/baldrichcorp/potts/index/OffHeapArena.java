@@ -0,0 +1,195 @@
+package com.baldrichcorp.potts.index;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Memory allocator over direct {@code ByteBuffer} segments, which live outside of the Java heap and are never
+ * scanned or moved by the garbage collector. Blocks are addressed by a {@code long} that holds the index of their
+ * segment in the upper half and their offset in the lower half, 0 is never a valid address.
+ * <p>
+ * Block sizes are rounded up to a power of two and freed blocks are kept in one free list per size, so blocks that
+ * are freed and allocated again (leaves that grow, tables that resize) reuse the same memory. Memory is only returned
+ * to the operating system by {@link #release()}, the owner of the arena can reclaim the memory lost to
+ * fragmentation by copying its live blocks into a new arena and releasing the old one.
+ * <p>
+ * Arenas are not thread-safe.
+ *
+ * @author Santiago Baldrich.
+ */
+@Slf4j
+final class OffHeapArena {
+
+    private static final int MIN_SIZE_CLASS = 4;
+    private static final int MAX_SIZE_CLASS = 30;
+    private static final int FIRST_SEGMENT_SIZE = 1 << 16;
+
+    private final int maxSegmentSize;
+    private ByteBuffer[] segments = new ByteBuffer[0];
+    private ByteBuffer current;
+    private int top;
+    private final long[] freeLists = new long[MAX_SIZE_CLASS + 1];
+    private long reserved;
+    private long used;
+
+    /**
+     * Initializes a new, empty, {@code OffHeapArena}. Segments start small and double in size up to the given
+     * maximum, blocks larger than it get a segment of their own.
+     *
+     * @param maxSegmentSize the maximum size of the segments, in bytes.
+     */
+    OffHeapArena(int maxSegmentSize) {
+        if (maxSegmentSize < FIRST_SEGMENT_SIZE)
+            throw new IllegalArgumentException(String.format("Segments must be at least %d bytes long.", FIRST_SEGMENT_SIZE));
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * @return the size of the blocks allocated for the given number of bytes.
+     */
+    static int blockSize(int bytes) {
+        return 1 << sizeClass(bytes);
+    }
+
+    /**
+     * Allocate a block. The contents of the block are undefined.
+     *
+     * @param bytes the minimum size of the block.
+     * @return the address of the block, which holds {@link #blockSize(int)} bytes.
+     */
+    long allocate(int bytes) {
+        int sizeClass = sizeClass(bytes);
+        int size = 1 << sizeClass;
+        used += size;
+        long address = freeLists[sizeClass];
+        if (address != 0) {
+            freeLists[sizeClass] = getLong(address);
+            return address;
+        }
+        if (current == null || top + size > current.capacity())
+            grow(size);
+        address = ((long) (segments.length - 1) << 32) | top;
+        top += size;
+        return address;
+    }
+
+    /**
+     * Free a block so it can be reused by a later allocation of the same size.
+     *
+     * @param address the address of the block.
+     * @param bytes   the size requested when the block was allocated.
+     */
+    void free(long address, int bytes) {
+        int sizeClass = sizeClass(bytes);
+        putLong(address, freeLists[sizeClass]);
+        freeLists[sizeClass] = address;
+        used -= 1 << sizeClass;
+    }
+
+    /**
+     * Release every segment of the arena. Addresses allocated from it must not be used afterwards.
+     */
+    void release() {
+        for (ByteBuffer segment : segments)
+            release(segment);
+        segments = new ByteBuffer[0];
+        current = null;
+        Arrays.fill(freeLists, 0);
+        reserved = 0;
+        used = 0;
+    }
+
+    /**
+     * @return the number of bytes taken from the operating system.
+     */
+    long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return the number of bytes in blocks that are allocated and not freed.
+     */
+    long getUsed() {
+        return used;
+    }
+
+    long getLong(long address) {
+        return segments[(int) (address >>> 32)].getLong((int) address);
+    }
+
+    void putLong(long address, long value) {
+        segments[(int) (address >>> 32)].putLong((int) address, value);
+    }
+
+    int getInt(long address) {
+        return segments[(int) (address >>> 32)].getInt((int) address);
+    }
+
+    void putInt(long address, int value) {
+        segments[(int) (address >>> 32)].putInt((int) address, value);
+    }
+
+    double getDouble(long address) {
+        return segments[(int) (address >>> 32)].getDouble((int) address);
+    }
+
+    void putDouble(long address, double value) {
+        segments[(int) (address >>> 32)].putDouble((int) address, value);
+    }
+
+    byte getByte(long address) {
+        return segments[(int) (address >>> 32)].get((int) address);
+    }
+
+    void putByte(long address, byte value) {
+        segments[(int) (address >>> 32)].put((int) address, value);
+    }
+
+    /**
+     * Set a range of bytes, whose length is a multiple of 8, to 0.
+     */
+    void clear(long address, int bytes) {
+        for (int i = 0; i < bytes; i += Long.BYTES)
+            putLong(address + i, 0);
+    }
+
+    private void grow(int size) {
+        int length = current == null ? FIRST_SEGMENT_SIZE : Math.min(maxSegmentSize, current.capacity() * 2);
+        ByteBuffer segment = ByteBuffer.allocateDirect(Math.max(length, size)).order(ByteOrder.nativeOrder());
+        segments = Arrays.copyOf(segments, segments.length + 1);
+        segments[segments.length - 1] = segment;
+        current = segment;
+        reserved += segment.capacity();
+        // Offset 0 of the first segment is never handed out, so that 0 is never a valid address.
+        top = segments.length == 1 ? Long.BYTES * 2 : 0;
+        if (top + size > segment.capacity())
+            grow(size);
+    }
+
+    private static int sizeClass(int bytes) {
+        int sizeClass = Math.max(MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros(bytes - 1));
+        if (sizeClass > MAX_SIZE_CLASS)
+            throw new IllegalArgumentException(String.format("Blocks can't be larger than %d bytes: %d", 1 << MAX_SIZE_CLASS, bytes));
+        return sizeClass;
+    }
+
+    /**
+     * Free the memory of a direct buffer right away instead of waiting for the buffer to be collected, where the
+     * runtime allows it.
+     */
+    private static void release(ByteBuffer segment) {
+        try {
+            Method cleaner = segment.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object clean = cleaner.invoke(segment);
+            if (clean != null)
+                clean.getClass().getMethod("clean").invoke(clean);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            log.debug("Couldn't free a segment explicitly, it will be freed once it is collected", ex);
+        }
+    }
+}
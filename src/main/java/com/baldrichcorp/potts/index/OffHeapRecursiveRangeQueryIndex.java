@@ -0,0 +1,973 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+import com.baldrichcorp.potts.index.query.IndexKeySet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * A {@code RecursiveRangeQueryIndex} that keeps its trie and its leaves off the Java heap, in memory managed by the
+ * index itself (see {@code OffHeapArena}), so neither the size of the heap nor the work of the garbage collector
+ * grow with the number of occurrences indexed.
+ * <p>
+ * Every node of the trie is an open-addressing table of 32 byte entries: the fingerprint of a key, the address of the
+ * key and the addresses of its child node and of its leaf, either of which may be missing. The header of a node takes
+ * the room of one entry and tables hold 2^k - 1 entries, so nodes fill their power-of-two blocks exactly. Keys are
+ * stored encoded, null as a tag of its own, strings as UTF-8, longs and integers as their bytes and any other
+ * (serializable) key in its serialized form, and two keys are the same key if their encodings are equal. Leaves are
+ * sorted arrays of positions encoded by a {@code PositionCodec}, with a parallel array of measures that is only
+ * allocated once a measured occurrence is added. Range counts are two binary searches, range aggregates scan the
+ * measures within the range.
+ * <p>
+ * Reads share a lock that writes take exclusively, so reads wait for the write in progress, if any, and always see
+ * the latest writes: snapshots pinned on the clock are not isolated from later writes by this index.
+ * <p>
+ * Memory freed by removals is reused by later writes of the same size, {@link #compactMemory()} gives back the memory
+ * lost to fragmentation and {@link #free()} releases all of it. Memory is allocated as direct buffers, which count
+ * towards {@code -XX:MaxDirectMemorySize}.
+ *
+ * @param <T> the type of the elements that can be added to the index.
+ * @param <K> the type of the criterion used for comparison in queries.
+ * @author Santiago Baldrich.
+ */
+@Slf4j
+public class OffHeapRecursiveRangeQueryIndex<T, K extends Comparable<? super K>> implements RecursiveRangeQueryIndex<T, K> {
+
+    private static final int DEFAULT_SEGMENT_SIZE = 1 << 26;
+
+    private static final int NODE_HEADER = 32;
+    private static final int ENTRY = 32;
+    private static final int KEY = 8;
+    private static final int CHILD = 16;
+    private static final int LEAF = 24;
+    private static final int MIN_NODE_CAPACITY = 3;
+
+    private static final int LEAF_HEADER = 16;
+    private static final int LEAF_SIZE = 4;
+    private static final int LEAF_MEASURED = 8;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte OBJECT = 4;
+
+    private final VersionClock clock;
+    private final PositionCodec<K> codec;
+    private final int maxSegmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private OffHeapArena arena;
+    private long root;
+
+    /**
+     * Initializes a new {@code OffHeapRecursiveRangeQueryIndex}.
+     *
+     * @param clock the clock shared by all the indices written together, writes are serialized by it.
+     * @param codec the codec used to store the positions, it should be lossless.
+     */
+    public OffHeapRecursiveRangeQueryIndex(VersionClock clock, PositionCodec<K> codec) {
+        this(clock, codec, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Initializes a new {@code OffHeapRecursiveRangeQueryIndex} that allocates its memory in segments of up to the
+     * given size.
+     *
+     * @param clock          the clock shared by all the indices written together, writes are serialized by it.
+     * @param codec          the codec used to store the positions, it should be lossless.
+     * @param maxSegmentSize the maximum size of the memory segments, in bytes.
+     */
+    public OffHeapRecursiveRangeQueryIndex(VersionClock clock, PositionCodec<K> codec, int maxSegmentSize) {
+        this.clock = clock;
+        this.codec = codec;
+        this.maxSegmentSize = maxSegmentSize;
+        this.arena = new OffHeapArena(maxSegmentSize);
+        this.root = newNode(arena, MIN_NODE_CAPACITY);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(IndexKeySet keys, K pos) {
+        add(keys, pos, Leaf.UNMEASURED);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(IndexKeySet keys, K pos, double measure) {
+        byte[][] encoded = encode(keys);
+        write(() -> {
+            insert(entry(encoded, encoded.length), codec.encode(pos), measure);
+            return null;
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean remove(IndexKeySet keys, K pos) {
+        byte[][] encoded = encode(keys);
+        return write(() -> remove(root, encoded, 0, codec.encode(pos)));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean move(IndexKeySet keys, K oldPos, K newPos) {
+        byte[][] encoded = encode(keys);
+        return write(() -> {
+            long entry = find(encoded);
+            long leaf = entry == 0 ? 0 : arena.getLong(entry + LEAF);
+            int at = leaf == 0 ? -1 : indexOf(leaf, codec.encode(oldPos));
+            if (at < 0)
+                return false;
+            double measure = measure(leaf, at);
+            delete(entry, leaf, at);
+            insert(entry, codec.encode(newPos), measure);
+            return true;
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isEmpty() {
+        return read(() -> size(root) == 0);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int query(IndexKeySet keys, K start, K end) {
+        QueryTrace trace = QueryTrace.active();
+        long l = codec.encode(start);
+        long r = codec.encode(end);
+        int result = read(() -> {
+            long node = node(keys, keys.size() - 1, trace);
+            long entry = node == 0 ? 0 : find(node, encode(keys.get(keys.size() - 1)));
+            long leaf = entry == 0 ? 0 : arena.getLong(entry + LEAF);
+            return leaf == 0 ? 0 : count(leaf, l, r);
+        });
+        if (trace != null)
+            trace.stage("leaf");
+        return result;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(IndexKeySet keys, K start, K end) {
+        QueryTrace trace = QueryTrace.active();
+        long l = codec.encode(start);
+        long r = codec.encode(end);
+        Aggregate result = read(() -> {
+            long node = node(keys, keys.size() - 1, trace);
+            long entry = node == 0 ? 0 : find(node, encode(keys.get(keys.size() - 1)));
+            long leaf = entry == 0 ? 0 : arena.getLong(entry + LEAF);
+            return leaf == 0 ? Aggregate.EMPTY : aggregate(leaf, l, r);
+        });
+        if (trace != null)
+            trace.stage("leaf");
+        return result;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int accumulate(IndexKeySet keys, K start, K end) {
+        return leaves(keys, start, end, false);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int count(IndexKeySet keys, K start, K end) {
+        return leaves(keys, start, end, true);
+    }
+
+    /**
+     * @inheritDoc
+     * <p>
+     * Leaves are already kept as arrays of encoded positions, so there is nothing to compress: this method compresses
+     * no leaves. Use {@link #compactMemory()} to give back the memory lost to fragmentation.
+     */
+    @Override
+    public int compact(PositionCodec<K> codec, int minSize, long idleWrites) {
+        return 0;
+    }
+
+    /**
+     * @inheritDoc
+     * <p>
+     * Positions are merged as encoded by the codecs of the indices, which must be the same.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void merge(RecursiveRangeQueryIndex<T, K> other) {
+        if (other == this || !(other instanceof OffHeapRecursiveRangeQueryIndex))
+            throw new IllegalArgumentException(String.format("Can't merge a %s into this index.", other.getClass().getSimpleName()));
+        OffHeapRecursiveRangeQueryIndex<T, K> source = (OffHeapRecursiveRangeQueryIndex<T, K>) other;
+        clock.beginWrite();
+        source.lock.readLock().lock();
+        try {
+            source.checkLive();
+            write(() -> {
+                source.forEachLeaf(source.root, new byte[8][], 0, (keys, depth, leaf) ->
+                        merge(entry(keys, depth), source.positions(leaf), source.measures(leaf)));
+                return null;
+            });
+        } finally {
+            source.lock.readLock().unlock();
+            clock.endWrite();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void save(ObjectOutput out, PositionCodec<K> codec) {
+        read(() -> {
+            forEachLeaf(root, new byte[8][], 0, (keys, depth, leaf) -> {
+                Object[] tuple = new Object[depth];
+                for (int i = 0; i < depth; i++)
+                    tuple[i] = decode(keys[i]);
+                long[] positions = positions(leaf);
+                K[] decoded = (K[]) new Comparable<?>[positions.length];
+                for (int i = 0; i < positions.length; i++)
+                    decoded[i] = this.codec.decode(positions[i]);
+                double[] measures = measures(leaf);
+                if (measures == null) {
+                    measures = new double[positions.length];
+                    Arrays.fill(measures, Leaf.UNMEASURED);
+                }
+                IndexFile.write(out, IndexKeySet.of(tuple), Leaf.of(decoded, measures), codec);
+            });
+            return null;
+        });
+        IndexFile.end(out);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void merge(ObjectInput in, PositionCodec<K> codec) {
+        write(() -> {
+            for (IndexKeySet keys = IndexFile.readKeys(in); keys != null; keys = IndexFile.readKeys(in)) {
+                Leaf<K> leaf = IndexFile.readLeaf(in, codec);
+                long[] positions = new long[leaf.size()];
+                double[] measures = new double[positions.length];
+                boolean[] measured = {false};
+                int[] n = {0};
+                leaf.forEach((pos, measure) -> {
+                    measured[0] |= !Double.isNaN(measure);
+                    measures[n[0]] = measure;
+                    positions[n[0]++] = this.codec.encode(pos);
+                });
+                byte[][] encoded = encode(keys);
+                merge(entry(encoded, encoded.length), positions, measured[0] ? measures : null);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Copy every node, key and leaf of the index into new memory segments, with the nodes and leaves trimmed to
+     * their size, and release the old segments. Reads wait for the compaction to finish.
+     *
+     * @return the number of bytes given back.
+     */
+    public long compactMemory() {
+        return write(() -> {
+            OffHeapArena compacted = new OffHeapArena(maxSegmentSize);
+            long before = arena.getReserved();
+            root = copyNode(arena, compacted, root);
+            arena.release();
+            arena = compacted;
+            log.debug("Compacted {} bytes into {}", before, compacted.getReserved());
+            return before - compacted.getReserved();
+        });
+    }
+
+    /**
+     * Release all the memory of the index. The index can't be used afterwards.
+     */
+    public void free() {
+        write(() -> {
+            arena.release();
+            arena = null;
+            root = 0;
+            return null;
+        });
+    }
+
+    /**
+     * @return the number of bytes of memory taken by the index, outside of the heap.
+     */
+    public long getReservedBytes() {
+        return read(() -> arena.getReserved());
+    }
+
+    /**
+     * @return the number of bytes of memory in use by the index, the rest is free for later writes.
+     */
+    public long getUsedBytes() {
+        return read(() -> arena.getUsed());
+    }
+
+    private <R> R read(Supplier<R> operation) {
+        lock.readLock().lock();
+        try {
+            checkLive();
+            return operation.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private <R> R write(Supplier<R> operation) {
+        clock.beginWrite();
+        lock.writeLock().lock();
+        try {
+            checkLive();
+            return operation.get();
+        } finally {
+            lock.writeLock().unlock();
+            clock.endWrite();
+        }
+    }
+
+    private void checkLive() {
+        if (arena == null)
+            throw new IllegalStateException("The index has been freed.");
+    }
+
+    /**
+     * Count the occurrences within a range of the leaves of the node reached by following a key set.
+     *
+     * @param distinct whether to count the leaves with at least one occurrence instead of the occurrences.
+     */
+    private int leaves(IndexKeySet keys, K start, K end, boolean distinct) {
+        QueryTrace trace = QueryTrace.active();
+        long l = codec.encode(start);
+        long r = codec.encode(end);
+        int result = read(() -> {
+            long node = node(keys, keys.size(), trace);
+            if (node == 0)
+                return 0;
+            int total = 0;
+            for (int i = 0; i < capacity(node); i++) {
+                long entry = slot(node, i);
+                long leaf = arena.getLong(entry + KEY) == 0 ? 0 : arena.getLong(entry + LEAF);
+                if (leaf == 0)
+                    continue;
+                int count = count(leaf, l, r);
+                total += distinct ? (count > 0 ? 1 : 0) : count;
+            }
+            if (trace != null)
+                trace.visited(size(node));
+            return total;
+        });
+        if (trace != null)
+            trace.stage("leaf");
+        return result;
+    }
+
+    // Trie.
+
+    /**
+     * Follow the branches given by the first keys of the key set.
+     *
+     * @return the node reached after following <em>depth</em> keys or 0 if there is no such node.
+     */
+    private long node(IndexKeySet keys, int depth, QueryTrace trace) {
+        long node = root;
+        for (int i = 0; i < depth && node != 0; i++) {
+            long entry = find(node, encode(keys.get(i)));
+            node = entry == 0 ? 0 : arena.getLong(entry + CHILD);
+            if (trace != null)
+                trace.level(i, keys.get(i));
+        }
+        return node;
+    }
+
+    /**
+     * @return the entry of a full key tuple or 0 if there is none.
+     */
+    private long find(byte[][] keys) {
+        long node = root;
+        for (int i = 0; i < keys.length - 1 && node != 0; i++) {
+            long entry = find(node, keys[i]);
+            node = entry == 0 ? 0 : arena.getLong(entry + CHILD);
+        }
+        return node == 0 ? 0 : find(node, keys[keys.length - 1]);
+    }
+
+    /**
+     * @return the entry of a key in a node or 0 if there is none.
+     */
+    private long find(long node, byte[] key) {
+        long fingerprint = fingerprint(key);
+        int capacity = capacity(node);
+        for (int i = home(fingerprint, capacity); ; i = next(i, capacity)) {
+            long entry = slot(node, i);
+            long address = arena.getLong(entry + KEY);
+            if (address == 0)
+                return 0;
+            if (arena.getLong(entry) == fingerprint && matches(address, key))
+                return entry;
+        }
+    }
+
+    /**
+     * Follow the first keys of a tuple from the root, creating the entries and nodes that are missing.
+     *
+     * @return the entry of the last key followed.
+     */
+    private long entry(byte[][] keys, int depth) {
+        long parent = 0;
+        for (int i = 0; i < depth; i++) {
+            long node = parent == 0 ? root : arena.getLong(parent + CHILD);
+            if (node == 0) {
+                node = newNode(arena, MIN_NODE_CAPACITY);
+                arena.putLong(parent + CHILD, node);
+            }
+            long entry = find(node, keys[i]);
+            if (entry == 0) {
+                if ((size(node) + 1) * 4 > capacity(node) * 3) {
+                    long resized = copyNode(arena, arena, node, capacity(node) * 2 + 1, false);
+                    freeNode(arena, node);
+                    node = resized;
+                    if (parent == 0)
+                        root = node;
+                    else
+                        arena.putLong(parent + CHILD, node);
+                }
+                entry = place(arena, node, fingerprint(keys[i]), storeKey(keys[i]), 0, 0);
+            }
+            parent = entry;
+        }
+        return parent;
+    }
+
+    /**
+     * Remove an occurrence from the tuple below a node, deleting the entries and nodes left empty.
+     */
+    private boolean remove(long node, byte[][] keys, int level, long value) {
+        long entry = find(node, keys[level]);
+        if (entry == 0)
+            return false;
+        if (level == keys.length - 1) {
+            long leaf = arena.getLong(entry + LEAF);
+            int at = leaf == 0 ? -1 : indexOf(leaf, value);
+            if (at < 0)
+                return false;
+            delete(entry, leaf, at);
+        } else {
+            long child = arena.getLong(entry + CHILD);
+            if (child == 0 || !remove(child, keys, level + 1, value))
+                return false;
+            if (size(child) == 0) {
+                freeNode(arena, child);
+                arena.putLong(entry + CHILD, 0);
+            }
+        }
+        if (arena.getLong(entry + LEAF) == 0 && arena.getLong(entry + CHILD) == 0) {
+            long key = arena.getLong(entry + KEY);
+            arena.free(key, Integer.BYTES + arena.getInt(key));
+            unplace(node, entry);
+        }
+        return true;
+    }
+
+    private static long newNode(OffHeapArena arena, int capacity) {
+        int bytes = NODE_HEADER + capacity * ENTRY;
+        long node = arena.allocate(bytes);
+        arena.clear(node, bytes);
+        arena.putInt(node, capacity);
+        return node;
+    }
+
+    private static void freeNode(OffHeapArena arena, long node) {
+        arena.free(node, NODE_HEADER + arena.getInt(node) * ENTRY);
+    }
+
+    private int capacity(long node) {
+        return arena.getInt(node);
+    }
+
+    private int size(long node) {
+        return arena.getInt(node + Integer.BYTES);
+    }
+
+    private static long slot(long node, int i) {
+        return node + NODE_HEADER + (long) i * ENTRY;
+    }
+
+    /**
+     * @return the slot a fingerprint hashes to in a table of the given capacity.
+     */
+    private static int home(long fingerprint, int capacity) {
+        return (int) (((fingerprint & 0xFFFFFFFFL) * capacity) >>> 32);
+    }
+
+    private static int next(int i, int capacity) {
+        return i + 1 == capacity ? 0 : i + 1;
+    }
+
+    /**
+     * @return the number of slots from one slot to another one in the probe order of a table.
+     */
+    private static int distance(int from, int to, int capacity) {
+        return to >= from ? to - from : to - from + capacity;
+    }
+
+    /**
+     * Place an entry in the first free slot of its probe sequence, the node must have room for it.
+     */
+    private static long place(OffHeapArena arena, long node, long fingerprint, long key, long child, long leaf) {
+        int capacity = arena.getInt(node);
+        int i = home(fingerprint, capacity);
+        while (arena.getLong(slot(node, i) + KEY) != 0)
+            i = next(i, capacity);
+        long entry = slot(node, i);
+        arena.putLong(entry, fingerprint);
+        arena.putLong(entry + KEY, key);
+        arena.putLong(entry + CHILD, child);
+        arena.putLong(entry + LEAF, leaf);
+        arena.putInt(node + Integer.BYTES, arena.getInt(node + Integer.BYTES) + 1);
+        return entry;
+    }
+
+    /**
+     * Remove an entry, shifting back the entries of its probe sequence so lookups never need tombstones.
+     */
+    private void unplace(long node, long entry) {
+        int capacity = capacity(node);
+        int hole = (int) ((entry - slot(node, 0)) / ENTRY);
+        for (int next = next(hole, capacity); arena.getLong(slot(node, next) + KEY) != 0; next = next(next, capacity)) {
+            int home = home(arena.getLong(slot(node, next)), capacity);
+            if (distance(home, next, capacity) >= distance(hole, next, capacity)) {
+                for (int field = 0; field < ENTRY; field += Long.BYTES)
+                    arena.putLong(slot(node, hole) + field, arena.getLong(slot(node, next) + field));
+                hole = next;
+            }
+        }
+        arena.clear(slot(node, hole), ENTRY);
+        arena.putInt(node + Integer.BYTES, size(node) - 1);
+    }
+
+    /**
+     * Copy a node and, if deep, everything below it from an arena to another one, trimming nodes to their size.
+     */
+    private static long copyNode(OffHeapArena from, OffHeapArena to, long node) {
+        int size = from.getInt(node + Integer.BYTES);
+        int capacity = MIN_NODE_CAPACITY;
+        while (size * 4 > capacity * 3)
+            capacity = capacity * 2 + 1;
+        return copyNode(from, to, node, capacity, true);
+    }
+
+    private static long copyNode(OffHeapArena from, OffHeapArena to, long node, int capacity, boolean deep) {
+        long copy = newNode(to, capacity);
+        for (int i = 0; i < from.getInt(node); i++) {
+            long entry = slot(node, i);
+            long key = from.getLong(entry + KEY);
+            if (key == 0)
+                continue;
+            long child = from.getLong(entry + CHILD);
+            long leaf = from.getLong(entry + LEAF);
+            if (deep) {
+                key = copyKey(from, to, key);
+                child = child == 0 ? 0 : copyNode(from, to, child);
+                leaf = leaf == 0 ? 0 : copyLeaf(from, to, leaf);
+            }
+            place(to, copy, from.getLong(entry), key, child, leaf);
+        }
+        return copy;
+    }
+
+    /**
+     * Visit the leaf of every full key tuple below a node.
+     */
+    private void forEachLeaf(long node, byte[][] keys, int level, LeafVisitor visitor) {
+        if (level == keys.length)
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        for (int i = 0; i < capacity(node); i++) {
+            long entry = slot(node, i);
+            long key = arena.getLong(entry + KEY);
+            if (key == 0)
+                continue;
+            keys[level] = readKey(key);
+            long leaf = arena.getLong(entry + LEAF);
+            if (leaf != 0)
+                visitor.visit(keys, level + 1, leaf);
+            long child = arena.getLong(entry + CHILD);
+            if (child != 0)
+                forEachLeaf(child, keys, level + 1, visitor);
+        }
+    }
+
+    // Keys.
+
+    private long storeKey(byte[] key) {
+        long address = arena.allocate(Integer.BYTES + key.length);
+        arena.putInt(address, key.length);
+        for (int i = 0; i < key.length; i++)
+            arena.putByte(address + Integer.BYTES + i, key[i]);
+        return address;
+    }
+
+    private byte[] readKey(long address) {
+        byte[] key = new byte[arena.getInt(address)];
+        for (int i = 0; i < key.length; i++)
+            key[i] = arena.getByte(address + Integer.BYTES + i);
+        return key;
+    }
+
+    private boolean matches(long address, byte[] key) {
+        if (arena.getInt(address) != key.length)
+            return false;
+        for (int i = 0; i < key.length; i++) {
+            if (arena.getByte(address + Integer.BYTES + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static long copyKey(OffHeapArena from, OffHeapArena to, long key) {
+        int bytes = Integer.BYTES + from.getInt(key);
+        long copy = to.allocate(bytes);
+        for (int i = 0; i < bytes; i++)
+            to.putByte(copy + i, from.getByte(key + i));
+        return copy;
+    }
+
+    private static byte[][] encode(IndexKeySet keys) {
+        byte[][] encoded = new byte[keys.size()][];
+        for (int i = 0; i < encoded.length; i++)
+            encoded[i] = encode(keys.get(i));
+        return encoded;
+    }
+
+    private static byte[] encode(Object key) {
+        if (key == null)
+            return new byte[]{NULL};
+        if (key instanceof String) {
+            byte[] utf = ((String) key).getBytes(StandardCharsets.UTF_8);
+            byte[] encoded = new byte[utf.length + 1];
+            encoded[0] = STRING;
+            System.arraycopy(utf, 0, encoded, 1, utf.length);
+            return encoded;
+        }
+        if (key instanceof Long)
+            return ByteBuffer.allocate(Long.BYTES + 1).put(LONG).putLong((Long) key).array();
+        if (key instanceof Integer)
+            return ByteBuffer.allocate(Integer.BYTES + 1).put(INTEGER).putInt((Integer) key).array();
+        if (!(key instanceof Serializable))
+            throw new IllegalArgumentException(String.format("Keys of an off-heap index must be serializable: %s", key));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(OBJECT);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(key);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException(String.format("Couldn't encode key %s", key), ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object decode(byte[] key) {
+        switch (key[0]) {
+            case NULL:
+                return null;
+            case STRING:
+                return new String(key, 1, key.length - 1, StandardCharsets.UTF_8);
+            case LONG:
+                return ByteBuffer.wrap(key, 1, Long.BYTES).getLong();
+            case INTEGER:
+                return ByteBuffer.wrap(key, 1, Integer.BYTES).getInt();
+            default:
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(key, 1, key.length - 1))) {
+                    return in.readObject();
+                } catch (IOException | ClassNotFoundException ex) {
+                    throw new IllegalStateException("Couldn't decode a key of the index.", ex);
+                }
+        }
+    }
+
+    private static long fingerprint(byte[] key) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Leaves.
+
+    /**
+     * Allocate an empty leaf with room for at least the given number of occurrences.
+     */
+    private static long newLeaf(OffHeapArena arena, int capacity, boolean measured) {
+        int width = measured ? Long.BYTES + Double.BYTES : Long.BYTES;
+        int bytes = LEAF_HEADER + Math.max(1, capacity) * width;
+        long leaf = arena.allocate(bytes);
+        arena.putInt(leaf, (OffHeapArena.blockSize(bytes) - LEAF_HEADER) / width);
+        arena.putInt(leaf + LEAF_SIZE, 0);
+        arena.putInt(leaf + LEAF_MEASURED, measured ? 1 : 0);
+        return leaf;
+    }
+
+    private static void freeLeaf(OffHeapArena arena, long leaf) {
+        boolean measured = arena.getInt(leaf + LEAF_MEASURED) != 0;
+        arena.free(leaf, LEAF_HEADER + arena.getInt(leaf) * (measured ? Long.BYTES + Double.BYTES : Long.BYTES));
+    }
+
+    private static long copyLeaf(OffHeapArena from, OffHeapArena to, long leaf) {
+        int size = from.getInt(leaf + LEAF_SIZE);
+        boolean measured = from.getInt(leaf + LEAF_MEASURED) != 0;
+        long copy = newLeaf(to, size, measured);
+        for (int i = 0; i < size; i++) {
+            to.putLong(position(copy, i), from.getLong(position(leaf, i)));
+            if (measured)
+                to.putDouble(measure(copy, to.getInt(copy), i), from.getDouble(measure(leaf, from.getInt(leaf), i)));
+        }
+        to.putInt(copy + LEAF_SIZE, size);
+        return copy;
+    }
+
+    private static long position(long leaf, int i) {
+        return leaf + LEAF_HEADER + (long) i * Long.BYTES;
+    }
+
+    private static long measure(long leaf, int capacity, int i) {
+        return leaf + LEAF_HEADER + (long) capacity * Long.BYTES + (long) i * Double.BYTES;
+    }
+
+    private int leafSize(long leaf) {
+        return arena.getInt(leaf + LEAF_SIZE);
+    }
+
+    private boolean measured(long leaf) {
+        return arena.getInt(leaf + LEAF_MEASURED) != 0;
+    }
+
+    private double measure(long leaf, int i) {
+        return measured(leaf) ? arena.getDouble(measure(leaf, arena.getInt(leaf), i)) : Leaf.UNMEASURED;
+    }
+
+    /**
+     * Add an occurrence to the leaf of an entry, growing the leaf (or adding room for measures) if needed.
+     */
+    private void insert(long entry, long value, double measure) {
+        long leaf = arena.getLong(entry + LEAF);
+        boolean measured = !Double.isNaN(measure);
+        if (leaf == 0) {
+            leaf = newLeaf(arena, 1, measured);
+            arena.putLong(entry + LEAF, leaf);
+        } else if (leafSize(leaf) == arena.getInt(leaf) || (measured && !measured(leaf))) {
+            leaf = resize(entry, leaf, leafSize(leaf) + 1, measured || measured(leaf));
+        }
+        int size = leafSize(leaf);
+        int capacity = arena.getInt(leaf);
+        int at = upperBound(leaf, value);
+        for (int i = size; i > at; i--) {
+            arena.putLong(position(leaf, i), arena.getLong(position(leaf, i - 1)));
+            if (measured(leaf))
+                arena.putDouble(measure(leaf, capacity, i), arena.getDouble(measure(leaf, capacity, i - 1)));
+        }
+        arena.putLong(position(leaf, at), value);
+        if (measured(leaf))
+            arena.putDouble(measure(leaf, capacity, at), measure);
+        arena.putInt(leaf + LEAF_SIZE, size + 1);
+    }
+
+    /**
+     * Remove an occurrence from the leaf of an entry, freeing the leaf if it is left empty and shrinking it if it is
+     * left mostly empty.
+     */
+    private void delete(long entry, long leaf, int at) {
+        int size = leafSize(leaf) - 1;
+        int capacity = arena.getInt(leaf);
+        for (int i = at; i < size; i++) {
+            arena.putLong(position(leaf, i), arena.getLong(position(leaf, i + 1)));
+            if (measured(leaf))
+                arena.putDouble(measure(leaf, capacity, i), arena.getDouble(measure(leaf, capacity, i + 1)));
+        }
+        arena.putInt(leaf + LEAF_SIZE, size);
+        if (size == 0) {
+            freeLeaf(arena, leaf);
+            arena.putLong(entry + LEAF, 0);
+        } else if (size * 4 < capacity) {
+            resize(entry, leaf, size, measured(leaf));
+        }
+    }
+
+    /**
+     * Move the occurrences of the leaf of an entry to a new leaf with room for the given number of occurrences.
+     */
+    private long resize(long entry, long leaf, int capacity, boolean measured) {
+        int size = leafSize(leaf);
+        long resized = newLeaf(arena, Math.max(capacity, size * 2), measured);
+        int newCapacity = arena.getInt(resized);
+        for (int i = 0; i < size; i++) {
+            arena.putLong(position(resized, i), arena.getLong(position(leaf, i)));
+            if (measured)
+                arena.putDouble(measure(resized, newCapacity, i), measure(leaf, i));
+        }
+        arena.putInt(resized + LEAF_SIZE, size);
+        freeLeaf(arena, leaf);
+        arena.putLong(entry + LEAF, resized);
+        return resized;
+    }
+
+    /**
+     * Merge sorted occurrences into the leaf of an entry, occurrences already in the leaf go first.
+     *
+     * @param measures the measures of the occurrences, null if none is measured.
+     */
+    private void merge(long entry, long[] positions, double[] measures) {
+        long leaf = arena.getLong(entry + LEAF);
+        int size = leaf == 0 ? 0 : leafSize(leaf);
+        boolean measured = measures != null || (leaf != 0 && measured(leaf));
+        long merged = newLeaf(arena, size + positions.length, measured);
+        int capacity = arena.getInt(merged);
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < size + positions.length; k++) {
+            boolean mine = j == positions.length || (i < size && arena.getLong(position(leaf, i)) <= positions[j]);
+            arena.putLong(position(merged, k), mine ? arena.getLong(position(leaf, i)) : positions[j]);
+            if (measured)
+                arena.putDouble(measure(merged, capacity, k), mine ? measure(leaf, i) : measures == null ? Leaf.UNMEASURED : measures[j]);
+            if (mine)
+                i++;
+            else
+                j++;
+        }
+        arena.putInt(merged + LEAF_SIZE, size + positions.length);
+        if (leaf != 0)
+            freeLeaf(arena, leaf);
+        arena.putLong(entry + LEAF, merged);
+    }
+
+    private long[] positions(long leaf) {
+        long[] positions = new long[leafSize(leaf)];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = arena.getLong(position(leaf, i));
+        return positions;
+    }
+
+    /**
+     * @return the measures of a leaf, null if it has none.
+     */
+    private double[] measures(long leaf) {
+        if (!measured(leaf))
+            return null;
+        double[] measures = new double[leafSize(leaf)];
+        for (int i = 0; i < measures.length; i++)
+            measures[i] = measure(leaf, i);
+        return measures;
+    }
+
+    private int count(long leaf, long left, long right) {
+        return left > right ? 0 : upperBound(leaf, right) - lowerBound(leaf, left);
+    }
+
+    private Aggregate aggregate(long leaf, long left, long right) {
+        if (!measured(leaf) || left > right)
+            return Aggregate.EMPTY;
+        int count = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = lowerBound(leaf, left), end = upperBound(leaf, right); i < end; i++) {
+            double m = measure(leaf, i);
+            if (Double.isNaN(m))
+                continue;
+            count++;
+            sum += m;
+            min = Math.min(min, m);
+            max = Math.max(max, m);
+        }
+        return count == 0 ? Aggregate.EMPTY : new Aggregate(count, sum, min, max);
+    }
+
+    /**
+     * @return the index of the first occurrence at the given position or a negative number if there is none.
+     */
+    private int indexOf(long leaf, long value) {
+        int at = lowerBound(leaf, value);
+        return at < leafSize(leaf) && arena.getLong(position(leaf, at)) == value ? at : -1;
+    }
+
+    /**
+     * @return the index of the first position that is not less than the given one.
+     */
+    private int lowerBound(long leaf, long value) {
+        int lo = 0;
+        int hi = leafSize(leaf);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (arena.getLong(position(leaf, mid)) < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the index of the first position that is greater than the given one.
+     */
+    private int upperBound(long leaf, long value) {
+        int lo = 0;
+        int hi = leafSize(leaf);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (arena.getLong(position(leaf, mid)) <= value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    @FunctionalInterface
+    private interface LeafVisitor {
+        /**
+         * @param keys  the encoded keys of the tuple, only the first <em>depth</em> ones are part of it.
+         * @param depth the length of the tuple.
+         * @param leaf  the address of the leaf of the tuple.
+         */
+        void visit(byte[][] keys, int depth, long leaf);
+    }
+}
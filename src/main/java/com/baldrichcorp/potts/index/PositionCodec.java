@@ -0,0 +1,59 @@
+package com.baldrichcorp.potts.index;
+
+import java.time.Instant;
+
+/**
+ * Order-preserving encoding of positions as {@code long} values, for the structures that bucket, compress or
+ * serialize positions instead of comparing them. {@code encode(a) < encode(b)} must hold whenever
+ * {@code a.compareTo(b) < 0}.
+ *
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ */
+public interface PositionCodec<K extends Comparable<? super K>> {
+
+    PositionCodec<Integer> INTEGER = new PositionCodec<Integer>() {
+        @Override
+        public long encode(Integer pos) {
+            return pos;
+        }
+
+        @Override
+        public Integer decode(long value) {
+            return (int) value;
+        }
+    };
+
+    PositionCodec<Long> LONG = new PositionCodec<Long>() {
+        @Override
+        public long encode(Long pos) {
+            return pos;
+        }
+
+        @Override
+        public Long decode(long value) {
+            return value;
+        }
+    };
+
+    /**
+     * Encodes instants as nanoseconds since the epoch, which is lossless for instants within about 292 years of it.
+     *
+     * @throws ArithmeticException if an instant is farther from the epoch.
+     */
+    PositionCodec<Instant> INSTANT = new PositionCodec<Instant>() {
+        @Override
+        public long encode(Instant pos) {
+            return Math.addExact(Math.multiplyExact(pos.getEpochSecond(), 1_000_000_000L), pos.getNano());
+        }
+
+        @Override
+        public Instant decode(long value) {
+            return Instant.ofEpochSecond(Math.floorDiv(value, 1_000_000_000L), Math.floorMod(value, 1_000_000_000L));
+        }
+    };
+
+    long encode(K pos);
+
+    K decode(long value);
+}
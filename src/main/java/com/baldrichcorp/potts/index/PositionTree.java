@@ -0,0 +1,336 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Immutable treap that holds the positions (and optional measures) at which an element was observed. Every node
+ * stores the size and the measure aggregates of its subtree so range counts and range aggregates are answered
+ * in logarithmic time. Updates copy the path from the root to the modified node and return a new tree, the
+ * original tree is never modified.
+ * <p>
+ * This is the representation of the leaves of frequently observed elements, trees that shrink to half the
+ * capacity of an {@code ArrayLeaf} are demoted to one.
+ *
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ */
+final class PositionTree<K extends Comparable<? super K>> implements Leaf<K> {
+
+    private static final PositionTree<?> EMPTY = new PositionTree<>(null);
+
+    private final Node<K> root;
+
+    private PositionTree(Node<K> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K extends Comparable<? super K>> PositionTree<K> empty() {
+        return (PositionTree<K>) EMPTY;
+    }
+
+    /**
+     * Build a balanced tree with the occurrences of a leaf in linear time. Priorities decrease with depth, so the
+     * tree keeps its shape unless later insertions draw higher priorities.
+     *
+     * @param leaf the leaf to copy.
+     * @param <K>  the type of the positions.
+     * @return a {@code PositionTree} with the same occurrences.
+     */
+    @SuppressWarnings("unchecked")
+    static <K extends Comparable<? super K>> PositionTree<K> of(Leaf<K> leaf) {
+        Comparable<?>[] positions = new Comparable<?>[leaf.size()];
+        double[] measures = new double[positions.length];
+        int[] n = {0};
+        leaf.forEach((pos, measure) -> {
+            measures[n[0]] = measure;
+            positions[n[0]++] = pos;
+        });
+        return of((K[]) positions, measures);
+    }
+
+    /**
+     * Build a balanced tree from occurrences sorted by position in linear time, see {@link #of(Leaf)}.
+     *
+     * @param positions the sorted positions.
+     * @param measures  the measures of each position.
+     * @param <K>       the type of the positions.
+     * @return a {@code PositionTree} with the given occurrences.
+     */
+    static <K extends Comparable<? super K>> PositionTree<K> of(K[] positions, double[] measures) {
+        return new PositionTree<>(build(positions, measures, 0, positions.length, 0));
+    }
+
+    private static <K> Node<K> build(K[] positions, double[] measures, int from, int to, int depth) {
+        if (from >= to)
+            return null;
+        int mid = (from + to) >>> 1;
+        return new Node<>(positions[mid], measures[mid], Integer.MAX_VALUE - (depth << 24),
+                build(positions, measures, from, mid, depth + 1), build(positions, measures, mid + 1, to, depth + 1));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public PositionTree<K> with(K pos, double measure) {
+        return new PositionTree<>(insert(root, pos, measure, ThreadLocalRandom.current().nextInt()));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Leaf<K> without(K pos) {
+        Node<K> removed = remove(root, pos);
+        if (removed == root)
+            return this;
+        PositionTree<K> tree = new PositionTree<>(removed);
+        return tree.size() > ArrayLeaf.CAPACITY / 2 ? tree : ArrayLeaf.of(tree);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public double measureAt(K pos) {
+        for (Node<K> n = root; n != null; ) {
+            int c = pos.compareTo(n.pos);
+            if (c == 0)
+                return n.measure;
+            n = c < 0 ? n.left : n.right;
+        }
+        return UNMEASURED;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long footprint() {
+        return 16 + 88L * size();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int count(K left, K right) {
+        if (left.compareTo(right) > 0)
+            return 0;
+        return countAtMost(right) - countBelow(left);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(K left, K right) {
+        Node<K> n = root;
+        while (n != null) {
+            if (n.pos.compareTo(left) < 0)
+                n = n.right;
+            else if (n.pos.compareTo(right) > 0)
+                n = n.left;
+            else
+                break;
+        }
+        if (n == null)
+            return Aggregate.EMPTY;
+        Accumulator acc = new Accumulator();
+        acc.addSelf(n);
+        for (Node<K> l = n.left; l != null; ) {
+            if (l.pos.compareTo(left) >= 0) {
+                acc.addSelf(l);
+                acc.addTree(l.right);
+                l = l.left;
+            } else {
+                l = l.right;
+            }
+        }
+        for (Node<K> r = n.right; r != null; ) {
+            if (r.pos.compareTo(right) <= 0) {
+                acc.addSelf(r);
+                acc.addTree(r.left);
+                r = r.right;
+            } else {
+                r = r.left;
+            }
+        }
+        return acc.toAggregate();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void forEach(ObjDoubleConsumer<? super K> action) {
+        forEach(root, action);
+    }
+
+    private static <K> void forEach(Node<K> n, ObjDoubleConsumer<? super K> action) {
+        for (; n != null; n = n.right) {
+            forEach(n.left, action);
+            action.accept(n.pos, n.measure);
+        }
+    }
+
+    private int countBelow(K pos) {
+        int count = 0;
+        for (Node<K> n = root; n != null; ) {
+            if (n.pos.compareTo(pos) < 0) {
+                count += size(n.left) + 1;
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        return count;
+    }
+
+    private int countAtMost(K pos) {
+        int count = 0;
+        for (Node<K> n = root; n != null; ) {
+            if (n.pos.compareTo(pos) <= 0) {
+                count += size(n.left) + 1;
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        return count;
+    }
+
+    private static <K extends Comparable<? super K>> Node<K> insert(Node<K> n, K pos, double measure, int priority) {
+        if (n == null)
+            return new Node<>(pos, measure, priority, null, null);
+        if (pos.compareTo(n.pos) < 0) {
+            Node<K> l = insert(n.left, pos, measure, priority);
+            if (l.priority > n.priority)
+                return l.with(l.left, n.with(l.right, n.right));
+            return n.with(l, n.right);
+        }
+        Node<K> r = insert(n.right, pos, measure, priority);
+        if (r.priority > n.priority)
+            return r.with(n.with(n.left, r.left), r.right);
+        return n.with(n.left, r);
+    }
+
+    private static <K extends Comparable<? super K>> Node<K> remove(Node<K> n, K pos) {
+        if (n == null)
+            return null;
+        int c = pos.compareTo(n.pos);
+        if (c < 0) {
+            Node<K> l = remove(n.left, pos);
+            return l == n.left ? n : n.with(l, n.right);
+        }
+        if (c > 0) {
+            Node<K> r = remove(n.right, pos);
+            return r == n.right ? n : n.with(n.left, r);
+        }
+        return merge(n.left, n.right);
+    }
+
+    private static <K> Node<K> merge(Node<K> l, Node<K> r) {
+        if (l == null)
+            return r;
+        if (r == null)
+            return l;
+        if (l.priority > r.priority)
+            return l.with(l.left, merge(l.right, r));
+        return r.with(merge(l, r.left), r.right);
+    }
+
+    private static int size(Node<?> n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static final class Node<K> {
+        final K pos;
+        final double measure;
+        final int priority;
+        final Node<K> left;
+        final Node<K> right;
+
+        final int size;
+        final int measured;
+        final double sum;
+        final double min;
+        final double max;
+
+        Node(K pos, double measure, int priority, Node<K> left, Node<K> right) {
+            this.pos = pos;
+            this.measure = measure;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+
+            boolean hasMeasure = !Double.isNaN(measure);
+            this.size = 1 + size(left) + size(right);
+            this.measured = (hasMeasure ? 1 : 0) + measured(left) + measured(right);
+            this.sum = (hasMeasure ? measure : 0) + (left == null ? 0 : left.sum) + (right == null ? 0 : right.sum);
+            this.min = Math.min(hasMeasure ? measure : Double.POSITIVE_INFINITY,
+                    Math.min(left == null ? Double.POSITIVE_INFINITY : left.min,
+                            right == null ? Double.POSITIVE_INFINITY : right.min));
+            this.max = Math.max(hasMeasure ? measure : Double.NEGATIVE_INFINITY,
+                    Math.max(left == null ? Double.NEGATIVE_INFINITY : left.max,
+                            right == null ? Double.NEGATIVE_INFINITY : right.max));
+        }
+
+        private static int measured(Node<?> n) {
+            return n == null ? 0 : n.measured;
+        }
+
+        Node<K> with(Node<K> left, Node<K> right) {
+            return new Node<>(pos, measure, priority, left, right);
+        }
+    }
+
+    private static final class Accumulator {
+        int count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void addSelf(Node<?> n) {
+            if (Double.isNaN(n.measure))
+                return;
+            count++;
+            sum += n.measure;
+            min = Math.min(min, n.measure);
+            max = Math.max(max, n.measure);
+        }
+
+        void addTree(Node<?> n) {
+            if (n == null || n.measured == 0)
+                return;
+            count += n.measured;
+            sum += n.sum;
+            min = Math.min(min, n.min);
+            max = Math.max(max, n.max);
+        }
+
+        Aggregate toAggregate() {
+            return count == 0 ? Aggregate.EMPTY : new Aggregate(count, sum, min, max);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.IndexKeySet;
+
+import java.util.Arrays;
+
+/**
+ * Timings of the stages of a single sampled query: key extraction, every level of the trie walked, the leaf
+ * operation and the number of keys visited by it. Traces are created by a {@code QueryTracer} and are active on the
+ * thread that runs the query until the tracer ends them, the indices record their stages on the active trace, if any.
+ *
+ * @author Santiago Baldrich.
+ * @see QueryTracer
+ */
+public final class QueryTrace {
+
+    private static final ThreadLocal<QueryTrace> ACTIVE = new ThreadLocal<>();
+    private static volatile int tracing;
+
+    private final QueryTracer tracer;
+    private final String operation;
+    private final String index;
+    private final long started;
+    private final long begun;
+    private Object[] keys;
+    /**
+     * The name of every stage, or null for the levels of a trie, which are only named when the trace is rendered so
+     * that formatting their keys isn't timed.
+     */
+    private String[] stages = new String[8];
+    private int[] levels = new int[8];
+    private Object[] levelKeys = new Object[8];
+    private long[] timings = new long[8];
+    private int size;
+    private long mark;
+    private long visited;
+    private long elapsed;
+
+    QueryTrace(QueryTracer tracer, String operation, String index) {
+        this.tracer = tracer;
+        this.operation = operation;
+        this.index = index;
+        this.started = System.currentTimeMillis();
+        this.begun = System.nanoTime();
+        this.mark = begun;
+    }
+
+    /**
+     * Get the trace active on the current thread. Costs a volatile read when no trace is active on any thread.
+     *
+     * @return the active trace or null if the current query is not being traced.
+     */
+    static QueryTrace active() {
+        return tracing == 0 ? null : ACTIVE.get();
+    }
+
+    void activate() {
+        QueryTrace stale = ACTIVE.get();
+        if (stale != null)
+            stale.deactivate();
+        synchronized (ACTIVE) {
+            tracing++;
+        }
+        ACTIVE.set(this);
+    }
+
+    void deactivate() {
+        ACTIVE.remove();
+        synchronized (ACTIVE) {
+            tracing--;
+        }
+        elapsed = System.nanoTime() - begun;
+    }
+
+    /**
+     * Record a stage that took the time elapsed since the previous one.
+     *
+     * @param stage the name of the stage.
+     */
+    void stage(String stage) {
+        record(System.nanoTime(), stage, 0, null);
+    }
+
+    /**
+     * Record the step through one level of a trie.
+     *
+     * @param level the depth of the level.
+     * @param key   the key followed.
+     */
+    void level(int level, Object key) {
+        record(System.nanoTime(), null, level, key);
+    }
+
+    private void record(long now, String stage, int level, Object key) {
+        if (size == stages.length) {
+            stages = Arrays.copyOf(stages, size * 2);
+            levels = Arrays.copyOf(levels, size * 2);
+            levelKeys = Arrays.copyOf(levelKeys, size * 2);
+            timings = Arrays.copyOf(timings, size * 2);
+        }
+        stages[size] = stage;
+        levels[size] = level;
+        levelKeys[size] = key;
+        timings[size++] = now - mark;
+        mark = now;
+    }
+
+    /**
+     * Record keys (leaves) visited by a leaf operation.
+     *
+     * @param keys the number of keys visited.
+     */
+    void visited(long keys) {
+        visited += keys;
+    }
+
+    /**
+     * Stop tracing, handing the trace back to the tracer that started it.
+     *
+     * @param keys the keys queried.
+     */
+    void end(IndexKeySet keys) {
+        deactivate();
+        this.keys = new Object[keys.size()];
+        for (int i = 0; i < this.keys.length; i++)
+            this.keys[i] = keys.get(i);
+        tracer.end(this);
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the wall-clock time, in milliseconds, when the query started.
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return the total time taken by the query in nanoseconds.
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return the number of keys visited by the leaf operations of the query.
+     */
+    public long getVisited() {
+        return visited;
+    }
+
+    public String getKeys() {
+        return Arrays.toString(keys);
+    }
+
+    /**
+     * @return the names of the recorded stages, in order.
+     */
+    public String[] getStages() {
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++)
+            names[i] = stage(i);
+        return names;
+    }
+
+    /**
+     * @return the time taken by each recorded stage in nanoseconds, in the same order as {@link #getStages()}.
+     */
+    public long[] getTimings() {
+        return Arrays.copyOf(timings, size);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder()
+                .append(operation).append(' ').append(index).append(' ').append(getKeys())
+                .append(String.format(" %.3fms visited=%d:", elapsed / 1e6, visited));
+        for (int i = 0; i < size; i++)
+            sb.append(' ').append(stage(i)).append(String.format("=%.3fms", timings[i] / 1e6));
+        return sb.toString();
+    }
+
+    private String stage(int i) {
+        return stages[i] != null ? stages[i] : "level" + levels[i] + "(" + levelKeys[i] + ")";
+    }
+}
@@ -0,0 +1,97 @@
+package com.baldrichcorp.potts.index;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sampled tracing of slow queries. One query out of every <em>sampleEvery</em> is traced (see {@code QueryTrace});
+ * traced queries that take longer than the threshold are kept in a fixed-size ring buffer, that can be inspected at
+ * runtime with {@link #recent()}, and logged at debug level.
+ * <p>
+ * Queries that are not sampled only pay for drawing a random number.
+ *
+ * @author Santiago Baldrich.
+ * @see MapMultiCriteriaRangeQueryIndex#setTracer(QueryTracer)
+ */
+@Slf4j
+public class QueryTracer {
+
+    private final int sampleEvery;
+    private final long threshold;
+    private final AtomicReferenceArray<QueryTrace> traces;
+    private final AtomicLong recorded = new AtomicLong();
+
+    /**
+     * Initializes a new {@code QueryTracer}.
+     *
+     * @param sampleEvery trace one out of every <em>sampleEvery</em> queries, 1 traces every query.
+     * @param threshold   minimum duration of the traced queries that are kept.
+     * @param unit        the unit of the threshold.
+     * @param capacity    the number of slow queries kept, older ones are overwritten.
+     */
+    public QueryTracer(int sampleEvery, long threshold, TimeUnit unit, int capacity) {
+        if (sampleEvery < 1)
+            throw new IllegalArgumentException("The sampling interval must be positive.");
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be positive.");
+        this.sampleEvery = sampleEvery;
+        this.threshold = unit.toNanos(threshold);
+        this.traces = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Decide whether to trace a query and, if so, start tracing it on the current thread.
+     *
+     * @param operation the name of the operation.
+     * @param index     the identifier of the sub-index queried.
+     * @return the active trace or null if the query is not sampled.
+     */
+    QueryTrace begin(String operation, String index) {
+        if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0)
+            return null;
+        QueryTrace trace = new QueryTrace(this, operation, index);
+        trace.activate();
+        return trace;
+    }
+
+    /**
+     * Keep the trace of a finished query if it was slow.
+     *
+     * @param trace a trace returned by {@link #begin(String, String)}.
+     */
+    void end(QueryTrace trace) {
+        if (trace.getElapsed() < threshold)
+            return;
+        traces.set((int) (recorded.getAndIncrement() % traces.length()), trace);
+        log.debug("Slow query: {}", trace);
+    }
+
+    /**
+     * Get the slow queries kept in the ring buffer.
+     *
+     * @return the kept traces, most recent first.
+     */
+    public List<QueryTrace> recent() {
+        long last = recorded.get();
+        List<QueryTrace> recent = new ArrayList<>();
+        for (long i = last - 1; i >= 0 && i >= last - traces.length(); i--) {
+            QueryTrace trace = traces.get((int) (i % traces.length()));
+            if (trace != null)
+                recent.add(trace);
+        }
+        return recent;
+    }
+
+    /**
+     * @return the number of slow queries recorded since this tracer was created, including overwritten ones.
+     */
+    public long getRecorded() {
+        return recorded.get();
+    }
+}
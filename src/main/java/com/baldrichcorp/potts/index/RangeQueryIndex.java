@@ -1,5 +1,7 @@
 package com.baldrichcorp.potts.index;
 
+import com.baldrichcorp.potts.index.query.Aggregate;
+
 /**
  * The {@code RangeQueryIndex} allows to indexing elements of a given type using a comparable criterion and
  * making queries on these indices.
@@ -19,6 +21,42 @@ public interface RangeQueryIndex<T, K extends Comparable<? super K>> {
      */
     void add(T t, K pos);
 
+    /**
+     * Add a new element to the index at the given position along with a numeric measure for this occurrence.
+     *
+     * @param t       the element to add.
+     * @param pos     the position of the new element.
+     * @param measure the measure attached to this occurrence (an amount, a duration, etc.).
+     */
+    void add(T t, K pos, double measure);
+
+    /**
+     * Remove one observation of <em>t</em> at the given position. If several observations share the position, which
+     * one is removed is unspecified. Elements that are left without observations are discarded.
+     *
+     * @param t   the element to remove.
+     * @param pos the position of the observation to remove.
+     * @return <em>true</em> if an observation was removed, <em>false</em> if there was none at <em>pos</em>.
+     */
+    boolean remove(T t, K pos);
+
+    /**
+     * Move one observation of <em>t</em> from a position to another, keeping its measure.
+     *
+     * @param t      the element to move.
+     * @param oldPos the current position of the observation.
+     * @param newPos the new position of the observation.
+     * @return <em>true</em> if an observation was moved, <em>false</em> if there was none at <em>oldPos</em>.
+     */
+    boolean move(T t, K oldPos, K newPos);
+
+    /**
+     * Returns a boolean that indicates whether the index holds no observations at all.
+     *
+     * @return <em>true</em> if the index is empty, <em>false</em> otherwise.
+     */
+    boolean isEmpty();
+
     /**
      * Count the number of observations of <em>t</em> that fall within the given range.
      *
@@ -29,6 +67,16 @@ public interface RangeQueryIndex<T, K extends Comparable<? super K>> {
      */
     int query(T t, K left, K right);
 
+    /**
+     * Aggregate the measures of the observations of <em>t</em> that fall within the given range.
+     *
+     * @param t     the element to look for.
+     * @param left  the lower bound of the query.
+     * @param right the upper bound of the query.
+     * @return the sum, minimum, maximum and average of the measures of <em>t</em> within <em>[start,end]</em>.
+     */
+    Aggregate aggregate(T t, K left, K right);
+
     /**
      * Add up the number of observations of all elements in the index fall within the given range.
      *
@@ -46,4 +94,16 @@ public interface RangeQueryIndex<T, K extends Comparable<? super K>> {
      * @return the number of distinct elements in the index that have at least one observation that falls within the given range.
      */
     int count(K left, K right);
+
+    /**
+     * Compress the leaves that hold at least <em>minSize</em> occurrences and have not been written during the last
+     * <em>idleWrites</em> writes to the index (see {@code BlockLeaf}). Compressed leaves answer queries like any
+     * other leaf and are decompressed if they are written again.
+     *
+     * @param codec      the codec used to encode the positions, it should be lossless.
+     * @param minSize    the minimum number of occurrences of a compressed leaf.
+     * @param idleWrites the number of writes a leaf must have gone without being modified.
+     * @return the number of leaves compressed.
+     */
+    int compact(PositionCodec<K> codec, int minSize, long idleWrites);
 }
@@ -1,6 +1,12 @@
 package com.baldrichcorp.potts.index;
 
+import com.baldrichcorp.potts.index.query.Aggregate;
+import com.baldrichcorp.potts.index.query.AnyOf;
 import com.baldrichcorp.potts.index.query.IndexKeySet;
+import com.baldrichcorp.potts.index.query.MultiKeyResponse;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 /**
  * A Recursive {@code RangeQueryIndex} that allows searching and indexing using an arbitrary number
@@ -21,6 +27,41 @@ public interface RecursiveRangeQueryIndex<T, K extends Comparable<? super K>> {
      */
     void add(IndexKeySet keys, K pos);
 
+    /**
+     * Add a new element to the index along with a numeric measure for this occurrence.
+     *
+     * @param keys    the keys that represent the location of the new element in the index.
+     * @param pos     the position of the new element in the index.
+     * @param measure the measure attached to this occurrence.
+     */
+    void add(IndexKeySet keys, K pos, double measure);
+
+    /**
+     * Remove one occurrence of an element at the given position. Branches that are left empty are pruned.
+     *
+     * @param keys the keys that represent the element to remove.
+     * @param pos  the position of the occurrence to remove.
+     * @return <em>true</em> if an occurrence was removed, <em>false</em> if there was none at <em>pos</em>.
+     */
+    boolean remove(IndexKeySet keys, K pos);
+
+    /**
+     * Move one occurrence of an element from a position to another, keeping its measure.
+     *
+     * @param keys   the keys that represent the element to move.
+     * @param oldPos the current position of the occurrence.
+     * @param newPos the new position of the occurrence.
+     * @return <em>true</em> if an occurrence was moved, <em>false</em> if there was none at <em>oldPos</em>.
+     */
+    boolean move(IndexKeySet keys, K oldPos, K newPos);
+
+    /**
+     * Returns a boolean that indicates whether the index holds no elements at all.
+     *
+     * @return <em>true</em> if the index is empty, <em>false</em> otherwise.
+     */
+    boolean isEmpty();
+
     /**
      * Count the number of observations of <em>t</em> that fall within the given range.
      *
@@ -31,6 +72,48 @@ public interface RecursiveRangeQueryIndex<T, K extends Comparable<? super K>> {
      */
     int query(IndexKeySet keys, K start, K end);
 
+    /**
+     * Aggregate the measures of the observations of <em>t</em> that fall within the given range.
+     *
+     * @param keys  the keys that represent the element to look for.
+     * @param start the lower bound of the query.
+     * @param end   the upper bound of the query.
+     * @return the sum, minimum, maximum and average of the measures within the range <em>[start,end]</em>.
+     */
+    Aggregate aggregate(IndexKeySet keys, K start, K end);
+
+    /**
+     * Count the observations that fall within the given range of every key tuple a key set stands for. Levels of
+     * the key set may hold an {@code AnyOf} with several values instead of a single key. The default implementation
+     * makes one {@link #query(IndexKeySet, Comparable, Comparable)} per tuple, implementations may share the work
+     * of tuples with a common prefix.
+     *
+     * @param keys  the keys that represent the elements to look for, levels may hold an {@code AnyOf}.
+     * @param start the lower bound of the query.
+     * @param end   the upper bound of the query.
+     * @return the number of observations of every tuple within the range <em>[start,end]</em> and their sum.
+     */
+    default MultiKeyResponse queryIn(IndexKeySet keys, K start, K end) {
+        MultiKeyResponse response = new MultiKeyResponse();
+        int n = keys.size();
+        for (int i = 0; i < n; i++) {
+            if (AnyOf.size(keys.get(i)) == 0)
+                return response;
+        }
+        Object[] tuple = new Object[n];
+        int[] choice = new int[n];
+        IndexKeySet expanded = IndexKeySet.create(n);
+        for (int level = n - 1; level >= 0; ) {
+            expanded.clear();
+            for (int i = 0; i < n; i++)
+                expanded.add(tuple[i] = AnyOf.get(keys.get(i), choice[i]));
+            response.add(tuple, query(expanded, start, end));
+            for (level = n - 1; level >= 0 && ++choice[level] == AnyOf.size(keys.get(level)); level--)
+                choice[level] = 0;
+        }
+        return response;
+    }
+
     /**
      * Add up the number of observations of all elements in the index fall within the given range.
      *
@@ -50,4 +133,58 @@ public interface RecursiveRangeQueryIndex<T, K extends Comparable<? super K>> {
      * @return the number of distinct elements in the index that have at least one observation that falls within the given range.
      */
     int count(IndexKeySet keys, K start, K end);
-}
\ No newline at end of file
+
+    /**
+     * Compress the leaves that hold at least <em>minSize</em> occurrences and have not been written during the last
+     * <em>idleWrites</em> writes to the index (see {@code BlockLeaf}). Compressed leaves answer queries like any
+     * other leaf and are decompressed if they are written again.
+     *
+     * @param codec      the codec used to encode the positions, it should be lossless.
+     * @param minSize    the minimum number of occurrences of a compressed leaf.
+     * @param idleWrites the number of writes a leaf must have gone without being modified.
+     * @return the number of leaves compressed.
+     */
+    int compact(PositionCodec<K> codec, int minSize, long idleWrites);
+
+    /**
+     * Merge the occurrences of another index into this one, in a single write. Leaves of tuples that are only in
+     * <em>other</em> are shared, since leaves are immutable, and leaves of tuples in both indices are merged in
+     * linear time, nothing is added occurrence by occurrence. <em>other</em> is read at a snapshot and left as it
+     * is.
+     *
+     * @param other an index of the same implementation.
+     * @throws IllegalArgumentException if <em>other</em> is this index or an index of another implementation.
+     */
+    void merge(RecursiveRangeQueryIndex<T, K> other);
+
+    /**
+     * Write every full key tuple of the index with its occurrences, as seen by a snapshot taken by this method (see
+     * {@link #merge(ObjectInput, PositionCodec)}).
+     *
+     * @param out   the output to write to, keys are written as serialized objects.
+     * @param codec the codec used to encode the positions, it should be lossless.
+     * @throws java.io.UncheckedIOException if the output can't be written.
+     */
+    void save(ObjectOutput out, PositionCodec<K> codec);
+
+    /**
+     * Merge an index written by {@link #save(ObjectOutput, PositionCodec)} into this one, in a single write, like
+     * {@link #merge(RecursiveRangeQueryIndex)} does. The saved tuples are streamed, the saved index is never
+     * loaded as a whole.
+     *
+     * @param in    the input to read from, positioned at the start of the saved index.
+     * @param codec the codec the positions were written with.
+     * @throws java.io.UncheckedIOException if the input can't be read.
+     */
+    void merge(ObjectInput in, PositionCodec<K> codec);
+
+    /**
+     * Get the filter that full key tuples are checked against before they are looked up, which keeps track of how
+     * many lookups it answers on its own.
+     *
+     * @return the filter of the index or null if it keeps none.
+     */
+    default KeyFilter getKeyFilter() {
+        return null;
+    }
+}
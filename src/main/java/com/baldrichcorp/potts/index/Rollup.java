@@ -0,0 +1,152 @@
+package com.baldrichcorp.potts.index;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-resolution time buckets kept by the nodes of a {@code MultisetRecursiveRangeQueryIndex} to answer wide
+ * {@code accumulate} queries without visiting every leaf of the node. Each node counts its occurrences per bucket
+ * at every resolution (for instance per month, day and hour), a range is then answered from the coarse buckets that
+ * fit in it plus finer buckets at its edges.
+ * <p>
+ * Only ranges whose bounds are aligned to the finest resolution can be answered from buckets, other ranges are
+ * answered from the leaves as usual. Buckets are not versioned: reads from a pinned snapshot use the buckets of a node
+ * unless a later write changed them, in which case that node is answered from its leaves.
+ *
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ * @see MultisetRecursiveRangeQueryIndex#MultisetRecursiveRangeQueryIndex(VersionClock, Rollup)
+ */
+public final class Rollup<K extends Comparable<? super K>> {
+
+    private static final long DAYS_PER_MONTH = 30;
+
+    private final PositionCodec<K> codec;
+    private final long[] widths;
+
+    private Rollup(PositionCodec<K> codec, long[] widths) {
+        this.codec = codec;
+        this.widths = widths;
+    }
+
+    /**
+     * Create a rollup with the given bucket widths.
+     *
+     * @param codec  the codec used to turn positions into numbers.
+     * @param widths the bucket widths in encoded units, from the coarsest to the finest. Each width must be a
+     *               multiple of the next one.
+     * @param <K>    the type of the positions.
+     * @return the new rollup.
+     */
+    public static <K extends Comparable<? super K>> Rollup<K> of(PositionCodec<K> codec, long... widths) {
+        if (widths.length == 0)
+            throw new IllegalArgumentException("At least one bucket width is required.");
+        for (int i = 0; i < widths.length; i++) {
+            if (widths[i] <= 0 || (i > 0 && widths[i - 1] % widths[i] != 0))
+                throw new IllegalArgumentException("Bucket widths must be positive and each a multiple of the next one: "
+                        + Arrays.toString(widths));
+        }
+        return new Rollup<>(codec, widths.clone());
+    }
+
+    /**
+     * Create a rollup with month (30 days), day and hour buckets.
+     *
+     * @param codec the codec used to turn positions into numbers.
+     * @param unit  the time unit of the encoded positions.
+     * @param <K>   the type of the positions.
+     * @return the new rollup.
+     */
+    public static <K extends Comparable<? super K>> Rollup<K> calendar(PositionCodec<K> codec, TimeUnit unit) {
+        long day = unit.convert(1, TimeUnit.DAYS);
+        return of(codec, DAYS_PER_MONTH * day, day, unit.convert(1, TimeUnit.HOURS));
+    }
+
+    Buckets buckets() {
+        return new Buckets();
+    }
+
+    long encode(K pos) {
+        return codec.encode(pos);
+    }
+
+    /**
+     * Occurrence counts of a single node at every resolution.
+     */
+    final class Buckets {
+
+        private final Map<Long, Integer>[] counts;
+
+        @SuppressWarnings("unchecked")
+        private Buckets() {
+            counts = (Map<Long, Integer>[]) new Map<?, ?>[widths.length];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = new ConcurrentHashMap<>();
+        }
+
+        void add(K pos) {
+            long p = encode(pos);
+            for (int i = 0; i < widths.length; i++)
+                counts[i].merge(Math.floorDiv(p, widths[i]), 1, Integer::sum);
+        }
+
+        void remove(K pos) {
+            long p = encode(pos);
+            for (int i = 0; i < widths.length; i++)
+                counts[i].merge(Math.floorDiv(p, widths[i]), -1, (a, b) -> a + b == 0 ? null : a + b);
+        }
+
+        /**
+         * Count the occurrences within a range from the buckets.
+         *
+         * @param start the lower bound of the range.
+         * @param end   the upper bound of the range.
+         * @return the number of occurrences in <em>[start, end]</em>, or -1 if the bounds of the range are not
+         * aligned to the finest resolution.
+         */
+        int count(K start, K end) {
+            long from = encode(start);
+            long to = encode(end);
+            long finest = widths[widths.length - 1];
+            if (to == Long.MAX_VALUE || Math.floorMod(from, finest) != 0 || Math.floorMod(to + 1, finest) != 0)
+                return -1;
+            return from > to ? 0 : count(from, to + 1, 0);
+        }
+
+        /**
+         * Count the occurrences in <em>[from, to)</em> using the buckets of the given level and finer ones.
+         */
+        private int count(long from, long to, int level) {
+            long width = widths[level];
+            if (level == widths.length - 1)
+                return sum(level, from / width, to / width);
+            long lo = Math.floorDiv(from + width - 1, width);
+            long hi = Math.floorDiv(to, width);
+            if (lo >= hi)
+                return count(from, to, level + 1);
+            return count(from, lo * width, level + 1) + sum(level, lo, hi) + count(hi * width, to, level + 1);
+        }
+
+        /**
+         * Sum the buckets <em>[lo, hi)</em> of a level, iterating over the smallest of the range and the buckets.
+         */
+        private int sum(int level, long lo, long hi) {
+            if (lo >= hi)
+                return 0;
+            Map<Long, Integer> buckets = counts[level];
+            int total = 0;
+            if (hi - lo > buckets.size()) {
+                for (Map.Entry<Long, Integer> e : buckets.entrySet()) {
+                    if (e.getKey() >= lo && e.getKey() < hi)
+                        total += e.getValue();
+                }
+            } else {
+                for (long b = lo; b < hi; b++)
+                    total += buckets.getOrDefault(b, 0);
+            }
+            return total;
+        }
+    }
+}
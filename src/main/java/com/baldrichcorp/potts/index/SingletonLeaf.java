@@ -0,0 +1,91 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * {@code Leaf} of an element observed exactly once, which is the case of most elements. The occurrence is kept
+ * inline, without any array or tree node.
+ *
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ */
+final class SingletonLeaf<K extends Comparable<? super K>> implements Leaf<K> {
+
+    private final K pos;
+    private final double measure;
+
+    SingletonLeaf(K pos, double measure) {
+        this.pos = pos;
+        this.measure = measure;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Leaf<K> with(K pos, double measure) {
+        return this.pos.compareTo(pos) <= 0
+                ? ArrayLeaf.of(this.pos, this.measure, pos, measure)
+                : ArrayLeaf.of(pos, measure, this.pos, this.measure);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Leaf<K> without(K pos) {
+        return this.pos.compareTo(pos) == 0 ? Leaf.empty() : this;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public double measureAt(K pos) {
+        return this.pos.compareTo(pos) == 0 ? measure : UNMEASURED;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int size() {
+        return 1;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long footprint() {
+        return 48;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int count(K left, K right) {
+        return left.compareTo(pos) <= 0 && pos.compareTo(right) <= 0 ? 1 : 0;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(K left, K right) {
+        if (Double.isNaN(measure) || count(left, right) == 0)
+            return Aggregate.EMPTY;
+        return new Aggregate(1, measure, measure, measure);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void forEach(ObjDoubleConsumer<? super K> action) {
+        action.accept(pos, measure);
+    }
+}
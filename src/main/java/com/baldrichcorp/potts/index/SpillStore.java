@@ -0,0 +1,391 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory budget for the leaves of {@code MultiSetRangeQueryIndex} nodes, backed by a local file where the coldest
+ * leaves are spilled to. Nodes report the estimated footprint of every leaf they install (see
+ * {@link Leaf#footprint()}); when the leaves in memory outgrow the budget, a background thread sweeps the nodes and
+ * spills the least recently used leaves to the file, replacing them by small {@code SpilledLeaf} stubs, until the
+ * leaves in memory take about three quarters of the budget again. Writers never wait for a sweep: leaves are written
+ * to the file outside of any write, and each stub is then installed in a short write of its own, unless the leaf was
+ * written in the meantime.
+ * <p>
+ * Recency is tracked in sweeps: every lookup or write of an element stamps its leaf with the current sweep and every
+ * sweep starts a new one, so the leaves spilled first are those that went unused for the most sweeps. Leaves used
+ * since the last sweep are never spilled: if the working set alone outgrows the budget, the index keeps it in memory
+ * (and logs a warning) instead of spilling and loading back the same leaves on every write. Scans over every element
+ * of a node do not stamp leaves, so a wide query does not make the whole index look hot.
+ * <p>
+ * Spilled leaves are loaded back on access through a cache of the hottest loaded leaves, bounded to its own budget.
+ * Writes to a spilled leaf install it back in memory. Leaves are only spilled whole, and leaves with fewer than
+ * {@link #MIN_SPILL_SIZE} occurrences are never spilled, their stubs would not be much smaller than they are. Only
+ * leaves count against the budget, branches and the history kept for pinned snapshots do not; snapshots keep
+ * working across spills since both the leaves and their stubs are immutable.
+ * <p>
+ * The file is append-only: the records of leaves that were loaded back and written are not reclaimed until the store
+ * is closed, which deletes the file. A store can be shared by several indices, which then share its budget, and the
+ * store should outlive them:
+ * <pre>
+ * SpillStore&lt;Long&gt; store = new SpillStore&lt;&gt;(path, PositionCodec.LONG, 512L &lt;&lt; 20, 64L &lt;&lt; 20);
+ * new MapMultiCriteriaRangeQueryIndex&lt;&gt;(clock -&gt; new MultisetRecursiveRangeQueryIndex&lt;&gt;(clock, null, store));
+ * </pre>
+ *
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ * @see MultiSetRangeQueryIndex#MultiSetRangeQueryIndex(VersionClock, SpillStore)
+ */
+@Slf4j
+public final class SpillStore<K extends Comparable<? super K>> implements Closeable {
+
+    /**
+     * Number of occurrences a leaf needs to be spilled.
+     */
+    public static final int MIN_SPILL_SIZE = 8;
+
+    private static final int AGES = 64;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final PositionCodec<K> codec;
+    @Getter
+    private final long memoryBudget;
+    @Getter
+    private final long cacheBudget;
+    private final Set<MultiSetRangeQueryIndex<?, K>> nodes = Collections.newSetFromMap(new WeakHashMap<>());
+    private final Map<SpilledLeaf<K>, Leaf<K>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong resident = new AtomicLong();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final LongAdder spills = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder garbage = new LongAdder();
+
+    private long cached;
+    private long end;
+    private volatile long threshold;
+    private volatile int epoch;
+    private volatile boolean closed;
+    private volatile Thread sweeper;
+
+    /**
+     * Initializes a new {@code SpillStore}.
+     *
+     * @param file         the file to spill leaves to, it is truncated if it exists and deleted when the store is
+     *                     closed.
+     * @param codec        the codec used to encode the positions, positions are decoded from their encoded values so
+     *                     the codec should be lossless.
+     * @param memoryBudget the number of bytes that the leaves kept in memory should not exceed.
+     * @param cacheBudget  the number of bytes of the cache of loaded leaves, 0 to load spilled leaves on every access.
+     * @throws UncheckedIOException if the file can't be opened.
+     */
+    public SpillStore(Path file, PositionCodec<K> codec, long memoryBudget, long cacheBudget) {
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException(String.format("The memory budget must be positive: %d", memoryBudget));
+        if (cacheBudget < 0)
+            throw new IllegalArgumentException(String.format("The cache budget can't be negative: %d", cacheBudget));
+        this.file = file;
+        this.codec = codec;
+        this.memoryBudget = memoryBudget;
+        this.cacheBudget = cacheBudget;
+        this.threshold = memoryBudget;
+        try {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(String.format("Couldn't open the spill file %s", file), ex);
+        }
+    }
+
+    /**
+     * @return the estimated number of bytes taken by the leaves kept in memory.
+     */
+    public long getResidentBytes() {
+        return resident.get();
+    }
+
+    /**
+     * @return the number of bytes written to the spill file.
+     */
+    public synchronized long getFileBytes() {
+        return end;
+    }
+
+    /**
+     * @return the number of bytes of the spill file taken by leaves that were written after being spilled, which are
+     * not reclaimed until the store is closed.
+     */
+    public long getGarbageBytes() {
+        return garbage.sum();
+    }
+
+    /**
+     * @return the number of leaves spilled so far.
+     */
+    public long getSpilledLeaves() {
+        return spills.sum();
+    }
+
+    /**
+     * @return the number of spilled leaves read back from the file.
+     */
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    /**
+     * @return the number of spilled leaves found in the cache of loaded leaves.
+     */
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Close the spill file and delete it, after waiting for the sweep in progress, if any, to stop. The indices that
+     * spilled leaves to this store can't read them afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread running = sweeper;
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (cache) {
+            cache.clear();
+            cached = 0;
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(String.format("Couldn't delete the spill file %s", file), ex);
+        }
+    }
+
+    PositionCodec<K> codec() {
+        return codec;
+    }
+
+    /**
+     * Register a node, whose leaves are swept from then on. Nodes are held weakly, nodes pruned from their index are
+     * forgotten.
+     */
+    void register(MultiSetRangeQueryIndex<?, K> node) {
+        synchronized (nodes) {
+            nodes.add(node);
+        }
+    }
+
+    /**
+     * Stamp a version chain as accessed in the current sweep.
+     */
+    void touch(Versioned<?> chain) {
+        int current = epoch;
+        if (chain.accessed != current)
+            chain.accessed = current;
+    }
+
+    /**
+     * @return the number of sweeps since the chain was last accessed.
+     */
+    int age(Versioned<?> chain) {
+        return Math.max(0, Math.min(AGES - 1, epoch - chain.accessed));
+    }
+
+    boolean spillable(Leaf<K> leaf) {
+        return leaf != null && !(leaf instanceof SpilledLeaf) && leaf.size() >= MIN_SPILL_SIZE;
+    }
+
+    /**
+     * Account for the change in the footprint of the leaves in memory made by a write, starting a sweep on a
+     * background thread if the budget is exceeded and no sweep is in progress.
+     *
+     * @param bytes the bytes added (or, if negative, released) by the write.
+     */
+    void charge(long bytes) {
+        if (resident.addAndGet(bytes) <= threshold || closed || !sweeping.compareAndSet(false, true))
+            return;
+        Thread thread = new Thread(this::sweep, "spill-" + file.getFileName());
+        thread.setDaemon(true);
+        sweeper = thread;
+        thread.start();
+    }
+
+    /**
+     * @return whether the store was closed, sweeps stop as soon as they see it.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Write the occurrences of a leaf to the file:
+     * <pre>
+     * size (int) | measured (byte) | encoded positions (longs) | measures (doubles), only if measured
+     * </pre>
+     *
+     * @param leaf the leaf to spill.
+     * @return the stub that replaces the leaf.
+     * @throws UncheckedIOException if the leaf can't be written.
+     */
+    SpilledLeaf<K> spill(Leaf<K> leaf) {
+        int size = leaf.size();
+        long[] values = new long[size];
+        double[] measures = new double[size];
+        Aggregate[] aggregate = {Aggregate.EMPTY};
+        int[] n = {0};
+        leaf.forEach((pos, measure) -> {
+            if (!Double.isNaN(measure))
+                aggregate[0] = aggregate[0].combine(new Aggregate(1, measure, measure, measure));
+            measures[n[0]] = measure;
+            values[n[0]++] = codec.encode(pos);
+        });
+        boolean measured = !aggregate[0].isEmpty();
+        ByteBuffer record = ByteBuffer.allocate(5 + (measured ? 16 : 8) * size);
+        record.putInt(size).put((byte) (measured ? 1 : 0));
+        for (long value : values)
+            record.putLong(value);
+        if (measured) {
+            for (double measure : measures)
+                record.putDouble(measure);
+        }
+        record.flip();
+        long offset;
+        synchronized (this) {
+            offset = end;
+            try {
+                while (record.hasRemaining())
+                    channel.write(record, end + record.position());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(String.format("Couldn't spill a leaf to %s", file), ex);
+            }
+            end += record.limit();
+        }
+        spills.increment();
+        return new SpilledLeaf<>(this, offset, record.limit(), size, values[0], values[size - 1], aggregate[0]);
+    }
+
+    /**
+     * Record that a spilled leaf was replaced by a write. Its record stays in the file, since snapshots may still
+     * read it.
+     */
+    void discard(SpilledLeaf<K> spilled) {
+        garbage.add(spilled.length);
+    }
+
+    /**
+     * Get the occurrences of a spilled leaf, from the cache if they were loaded recently.
+     *
+     * @throws UncheckedIOException if the leaf can't be read.
+     */
+    Leaf<K> load(SpilledLeaf<K> spilled) {
+        synchronized (cache) {
+            Leaf<K> leaf = cache.get(spilled);
+            if (leaf != null) {
+                hits.increment();
+                return leaf;
+            }
+        }
+        Leaf<K> leaf = read(spilled);
+        loads.increment();
+        long bytes = leaf.footprint();
+        if (bytes > cacheBudget)
+            return leaf;
+        synchronized (cache) {
+            if (cache.put(spilled, leaf) == null)
+                cached += bytes;
+            for (Iterator<Leaf<K>> it = cache.values().iterator(); cached > cacheBudget && it.hasNext(); ) {
+                cached -= it.next().footprint();
+                it.remove();
+            }
+        }
+        return leaf;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Leaf<K> read(SpilledLeaf<K> spilled) {
+        ByteBuffer record = ByteBuffer.allocate(spilled.length);
+        try {
+            while (record.hasRemaining()) {
+                if (channel.read(record, spilled.offset + record.position()) < 0)
+                    throw new IllegalStateException(String.format("The spill file %s was truncated", file));
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(String.format("Couldn't load a spilled leaf from %s", file), ex);
+        }
+        record.flip();
+        K[] positions = (K[]) new Comparable<?>[record.getInt()];
+        boolean measured = record.get() != 0;
+        double[] measures = new double[positions.length];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = codec.decode(record.getLong());
+        for (int i = 0; i < measures.length; i++)
+            measures[i] = measured ? record.getDouble() : Leaf.UNMEASURED;
+        return Leaf.of(positions, measures);
+    }
+
+    /**
+     * Spill the least recently used leaves, among those not used since the last sweep, until the leaves in memory
+     * take three quarters of the budget. Runs on the thread started by {@link #charge(long)}. If not enough leaves can
+     * be spilled, the next sweep waits for the leaves in memory to grow by a quarter of the budget.
+     */
+    private void sweep() {
+        try {
+            List<MultiSetRangeQueryIndex<?, K>> swept;
+            synchronized (nodes) {
+                swept = new ArrayList<>(nodes);
+            }
+            long excess = resident.get() - memoryBudget / 4 * 3;
+            long[] bytes = new long[AGES];
+            for (MultiSetRangeQueryIndex<?, K> node : swept)
+                node.measureAges(bytes);
+            int minAge = AGES - 1;
+            for (long cold = bytes[minAge]; cold < excess && minAge > 1; )
+                cold += bytes[--minAge];
+            long freed = 0;
+            for (MultiSetRangeQueryIndex<?, K> node : swept) {
+                if (freed >= excess || closed)
+                    break;
+                freed += node.spill(minAge, excess - freed);
+            }
+            epoch++;
+            long remaining = resident.get();
+            threshold = Math.max(memoryBudget, remaining + memoryBudget / 4);
+            if (remaining > memoryBudget && !closed)
+                log.warn("Only {} bytes of cold leaves could be spilled, {} bytes remain in memory for a budget of {}",
+                        freed, remaining, memoryBudget);
+        } catch (RuntimeException ex) {
+            log.error("Couldn't spill leaves to {}", file, ex);
+        } finally {
+            sweeper = null;
+            sweeping.set(false);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.baldrichcorp.potts.index;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Stand-in for a {@code Leaf} whose occurrences were spilled to the file of a {@code SpillStore}. The stub keeps the
+ * number of occurrences, the first and last encoded positions and the aggregate of all the measures, so counts and
+ * aggregates over ranges that either miss the leaf or cover it entirely are answered without reading the file.
+ * <p>
+ * Any other read loads the occurrences back through the hot-set cache of the store. Like compressed leaves, spilled
+ * leaves are read-only: any write loads the leaf and installs it back in memory, where it counts against the memory
+ * budget again until it is spilled by a later sweep.
+ *
+ * @param <K> the type of the positions.
+ * @author Santiago Baldrich.
+ * @see SpillStore
+ */
+final class SpilledLeaf<K extends Comparable<? super K>> implements Leaf<K> {
+
+    private final SpillStore<K> store;
+    final long offset;
+    final int length;
+    private final int size;
+    private final long first;
+    private final long last;
+    private final Aggregate aggregate;
+
+    SpilledLeaf(SpillStore<K> store, long offset, int length, int size, long first, long last, Aggregate aggregate) {
+        this.store = store;
+        this.offset = offset;
+        this.length = length;
+        this.size = size;
+        this.first = first;
+        this.last = last;
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Leaf<K> with(K pos, double measure) {
+        return store.load(this).with(pos, measure);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Leaf<K> without(K pos) {
+        if (!covers(store.codec().encode(pos)))
+            return this;
+        Leaf<K> loaded = store.load(this);
+        Leaf<K> remaining = loaded.without(pos);
+        return remaining == loaded ? this : remaining;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public double measureAt(K pos) {
+        return covers(store.codec().encode(pos)) ? store.load(this).measureAt(pos) : UNMEASURED;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long footprint() {
+        return 64;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int count(K left, K right) {
+        if (left.compareTo(right) > 0)
+            return 0;
+        long l = store.codec().encode(left);
+        long r = store.codec().encode(right);
+        if (r < first || l > last)
+            return 0;
+        if (l <= first && last <= r)
+            return size;
+        return store.load(this).count(left, right);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(K left, K right) {
+        if (left.compareTo(right) > 0 || aggregate.isEmpty())
+            return Aggregate.EMPTY;
+        long l = store.codec().encode(left);
+        long r = store.codec().encode(right);
+        if (r < first || l > last)
+            return Aggregate.EMPTY;
+        if (l <= first && last <= r)
+            return aggregate;
+        return store.load(this).aggregate(left, right);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void forEach(ObjDoubleConsumer<? super K> action) {
+        store.load(this).forEach(action);
+    }
+
+    private boolean covers(long value) {
+        return first <= value && value <= last;
+    }
+}
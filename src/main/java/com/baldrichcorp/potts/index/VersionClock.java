@@ -0,0 +1,239 @@
+package com.baldrichcorp.potts.index;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Versioning shared by all the nodes of an index to provide snapshot isolation. Every write is tagged with a new
+ * version and installs new immutable leaves on top of the previous ones instead of modifying them, so readers never
+ * see a leaf that is being modified. Readers that pin a {@link Snapshot} see every leaf as it was when the snapshot
+ * was taken, even while writers keep going; readers that do not pin one see the latest leaves.
+ * <p>
+ * Writers are serialized among themselves (a write that spans several sub-indices gets a single version). Readers
+ * never wait for writers, except when pinning a snapshot, which waits for the write in progress to finish.
+ * <p>
+ * Values deleted while a snapshot is pinned leave a tombstone that the snapshot may still read past. Nodes register
+ * how to reclaim their tombstones with {@link #retire(Runnable)}, and tombstones are reclaimed, under the writer lock,
+ * by the first write or snapshot release after no pinned snapshot predates them (releases that find a write in
+ * progress leave them to the next write).
+ *
+ * @author Santiago Baldrich.
+ */
+public final class VersionClock {
+
+    /**
+     * Version read by threads that have not pinned a snapshot.
+     */
+    static final long LATEST = Long.MAX_VALUE;
+
+    private final ReentrantLock writer = new ReentrantLock();
+    private final TreeMap<Long, Integer> pins = new TreeMap<>();
+    private final ThreadLocal<long[]> reading = ThreadLocal.withInitial(() -> new long[]{LATEST});
+    private final Deque<Tombstone> tombstones = new ArrayDeque<>();
+
+    private volatile long published;
+    private long writing;
+    private long horizon;
+    private boolean pinned;
+    private volatile boolean retiring;
+
+    /**
+     * Start a write. Writes can be nested, nested writes share the version of the outermost one.
+     *
+     * @return the version of the write.
+     */
+    long beginWrite() {
+        writer.lock();
+        if (writer.getHoldCount() == 1) {
+            writing = published + 1;
+            advanceHorizon();
+            reclaim();
+        }
+        return writing;
+    }
+
+    /**
+     * Finish a write started with {@link #beginWrite()}, publishing it to new snapshots once the outermost write
+     * is over.
+     */
+    void endWrite() {
+        if (writer.getHoldCount() == 1)
+            published = writing;
+        writer.unlock();
+    }
+
+    /**
+     * @return the version of the write in progress, must be called within a write.
+     */
+    long writing() {
+        return writing;
+    }
+
+    /**
+     * @return the version of the last finished write.
+     */
+    long published() {
+        return published;
+    }
+
+    /**
+     * Get the version that the current thread reads.
+     *
+     * @return the version of the snapshot pinned by the current thread or {@link #LATEST}.
+     */
+    long readVersion() {
+        return reading.get()[0];
+    }
+
+    /**
+     * Create the new head of a version chain for a value written by the current write. History is only kept while
+     * some snapshot may need it.
+     *
+     * @param current the current head of the chain, may be null.
+     * @param value   the new value, null if the value was deleted.
+     * @param <V>     the type of the versioned values.
+     * @return the new head of the chain, or null if the chain can be discarded altogether.
+     */
+    <V> Versioned<V> install(Versioned<V> current, V value) {
+        if (!pinned)
+            return value == null ? null : new Versioned<>(writing, value, null);
+        return new Versioned<>(writing, value, Versioned.trim(current, horizon));
+    }
+
+    /**
+     * Register how to reclaim the tombstone left by the current write, which deleted a value while a snapshot was
+     * pinned. Tombstones are reclaimed in the order they were retired, under the writer lock, once no pinned snapshot
+     * can read past them. The action must check that the tombstone was not replaced by a later write.
+     *
+     * @param reclaim the action that discards the tombstone.
+     */
+    void retire(Runnable reclaim) {
+        tombstones.add(new Tombstone(writing, reclaim));
+        retiring = true;
+    }
+
+    /**
+     * Pin a snapshot of the current state of the index on the current thread. Until the snapshot is closed, every
+     * read made by this thread sees the index as it was when the snapshot was taken. Taking a snapshot waits for the
+     * write in progress, if any, so that it is not missing from the snapshot; it never waits for later writes. If the
+     * current thread already reads a snapshot, the new one is pinned at the same version.
+     *
+     * @return the pinned snapshot, it must be closed by the same thread.
+     */
+    public Snapshot snapshot() {
+        long version = readVersion();
+        if (version != LATEST) {
+            synchronized (pins) {
+                pins.merge(version, 1, Integer::sum);
+            }
+            return new Snapshot(version);
+        }
+        writer.lock();
+        try {
+            synchronized (pins) {
+                version = published;
+                pins.merge(version, 1, Integer::sum);
+            }
+        } finally {
+            writer.unlock();
+        }
+        return new Snapshot(version);
+    }
+
+    private void unpin(long version) {
+        synchronized (pins) {
+            pins.computeIfPresent(version, (v, count) -> count == 1 ? null : count - 1);
+        }
+        if (!retiring || !writer.tryLock())
+            return;
+        try {
+            if (writer.getHoldCount() == 1) {
+                advanceHorizon();
+                reclaim();
+            }
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    /**
+     * Compute the oldest version that may still be read. Must be called with the writer lock held.
+     */
+    private void advanceHorizon() {
+        synchronized (pins) {
+            pinned = !pins.isEmpty();
+            horizon = pinned ? Math.min(pins.firstKey(), published) : published;
+        }
+    }
+
+    /**
+     * Reclaim the tombstones that no pinned snapshot can read past anymore. Must be called with the writer lock held.
+     */
+    private void reclaim() {
+        while (!tombstones.isEmpty() && tombstones.peekFirst().version <= horizon)
+            tombstones.pollFirst().reclaim.run();
+        retiring = !tombstones.isEmpty();
+    }
+
+    private static final class Tombstone {
+        final long version;
+        final Runnable reclaim;
+
+        Tombstone(long version, Runnable reclaim) {
+            this.version = version;
+            this.reclaim = reclaim;
+        }
+    }
+
+    /**
+     * A pinned, point-in-time view of an index. Reads made by the thread that took the snapshot, or inside
+     * {@link #run(Runnable)} on any thread, see the index as it was when the snapshot was taken.
+     */
+    public final class Snapshot implements AutoCloseable {
+
+        private final long version;
+        private final long previous;
+        private boolean closed;
+
+        private Snapshot(long version) {
+            this.version = version;
+            long[] current = reading.get();
+            this.previous = current[0];
+            current[0] = version;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Run a task on the current thread reading this snapshot. Useful to share a snapshot with worker threads.
+         *
+         * @param task the task to run.
+         */
+        public void run(Runnable task) {
+            long[] current = reading.get();
+            long outer = current[0];
+            current[0] = version;
+            try {
+                task.run();
+            } finally {
+                current[0] = outer;
+            }
+        }
+
+        /**
+         * Release this snapshot and restore the version the current thread was reading before it was taken.
+         */
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            reading.get()[0] = previous;
+            unpin(version);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.baldrichcorp.potts.index;
+
+/**
+ * Node of a chain of versions of a value, newest first. A null value means the value was deleted in that version.
+ *
+ * @param <V> the type of the value.
+ * @author Santiago Baldrich.
+ * @see VersionClock
+ */
+final class Versioned<V> {
+
+    final long version;
+    final V value;
+    private volatile Versioned<V> previous;
+    /**
+     * Sweep in which the chain was last accessed, only maintained for the nodes of a {@code SpillStore}.
+     */
+    int accessed;
+
+    Versioned(long version, V value, Versioned<V> previous) {
+        this.version = version;
+        this.value = value;
+        this.previous = previous;
+    }
+
+    /**
+     * Get the value visible at the given version.
+     *
+     * @param chain   the head of the chain, may be null.
+     * @param version the version to read.
+     * @param <V>     the type of the value.
+     * @return the newest value written at or before <em>version</em>, null if there is none.
+     */
+    static <V> V at(Versioned<V> chain, long version) {
+        Versioned<V> node = chain;
+        while (node != null && node.version > version)
+            node = node.previous;
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Drop the versions that no reader can see anymore, that is, the ones older than the newest version at or
+     * before the horizon.
+     *
+     * @param chain   the head of the chain, may be null.
+     * @param horizon the oldest version that may still be read.
+     * @param <V>     the type of the value.
+     * @return the head of the chain.
+     */
+    static <V> Versioned<V> trim(Versioned<V> chain, long horizon) {
+        Versioned<V> node = chain;
+        while (node != null && node.version > horizon)
+            node = node.previous;
+        if (node != null)
+            node.previous = null;
+        return chain;
+    }
+}
@@ -0,0 +1,62 @@
+package com.baldrichcorp.potts.index.query;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Summary of the measures attached to the occurrences that fall within a range. Only occurrences that were added
+ * with a measure take part in the aggregate, so {@link #getCount()} may be smaller than the number of occurrences
+ * returned by a plain query on the same range.
+ *
+ * @author Santiago Baldrich.
+ */
+@ToString
+@Getter
+public class Aggregate {
+
+    public static final Aggregate EMPTY = new Aggregate(0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+
+    private final int count;
+    private final double sum;
+    private final double min;
+    private final double max;
+
+    public Aggregate(int count, double sum, double min, double max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Get the mean of the measures in this aggregate.
+     *
+     * @return the average of the measures or {@code NaN} if there are none.
+     */
+    public double getAverage() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * Returns a boolean that indicates whether no measured occurrence contributed to this aggregate.
+     *
+     * @return <em>true</em> if the aggregate is empty, <em>false</em> otherwise.
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Combine this aggregate with another one.
+     *
+     * @param that the aggregate to combine with.
+     * @return a new {@code Aggregate} that summarizes the measures of both.
+     */
+    public Aggregate combine(Aggregate that) {
+        if (that.isEmpty())
+            return this;
+        if (this.isEmpty())
+            return that;
+        return new Aggregate(count + that.count, sum + that.sum, Math.min(min, that.min), Math.max(max, that.max));
+    }
+}
@@ -0,0 +1,57 @@
+package com.baldrichcorp.potts.index.query;
+
+import lombok.ToString;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * A set of alternative values for one level of an {@code IndexKeySet}, used for <em>IN</em> queries. A key set that
+ * holds {@code AnyOf} keys stands for every key tuple that results from picking one value at each of those levels:
+ * <pre>
+ * IndexKeySet.create(2).add(account).add(AnyOf.of(emails))
+ * </pre>
+ * Repeated values are kept once, in the position of their first occurrence, so no tuple is counted twice.
+ *
+ * @author Santiago Baldrich.
+ * @see com.baldrichcorp.potts.index.RecursiveRangeQueryIndex#queryIn(IndexKeySet, Comparable, Comparable)
+ */
+@ToString
+public final class AnyOf {
+
+    private final Object[] values;
+
+    private AnyOf(Object[] values) {
+        this.values = values;
+    }
+
+    public static AnyOf of(Object... values) {
+        return of(Arrays.asList(values));
+    }
+
+    public static AnyOf of(Collection<?> values) {
+        return new AnyOf(new LinkedHashSet<>(values).toArray());
+    }
+
+    /**
+     * Get the number of values a key stands for.
+     *
+     * @param key a key of a key set.
+     * @return the number of values of <em>key</em> if it is an {@code AnyOf}, 1 otherwise.
+     */
+    public static int size(Object key) {
+        return key instanceof AnyOf ? ((AnyOf) key).values.length : 1;
+    }
+
+    /**
+     * Get one of the values a key stands for.
+     *
+     * @param key a key of a key set.
+     * @param i   the index of the value, less than {@link #size(Object)}.
+     * @return the i-th value of <em>key</em> if it is an {@code AnyOf}, <em>key</em> itself otherwise.
+     */
+    public static Object get(Object key, int i) {
+        return key instanceof AnyOf ? ((AnyOf) key).values[i] : key;
+    }
+}
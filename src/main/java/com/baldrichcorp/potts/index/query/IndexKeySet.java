@@ -3,7 +3,6 @@ package com.baldrichcorp.potts.index.query;
 import lombok.ToString;
 
 import java.util.Arrays;
-import java.util.Objects;
 
 /**
  * Class {@code IndexKeySet} represents a set of keys that can be used
@@ -13,6 +12,10 @@ import java.util.Objects;
  * <p>
  * The KeySet works as a wrapper for an {@code Object} array and pointers to the start and end of the array. Each operation
  * works by moving these indices around.
+ * <p>
+ * A KeySet can also be used as a reusable buffer: {@link #clear()} it, fill it with {@link #add(Object)} and read it
+ * with {@link #size()} and {@link #get(int)}, which do not consume any keys. This allows generating and looking up
+ * keys without allocating anything per operation.
  *
  * @author Santiago Baldrich.
  */
@@ -33,6 +36,61 @@ public class IndexKeySet {
         return new IndexKeySet(keys);
     }
 
+    /**
+     * Create an empty key set that can hold the given number of keys before growing.
+     *
+     * @param capacity the initial capacity of the key set.
+     * @return an empty key set.
+     */
+    public static IndexKeySet create(int capacity) {
+        IndexKeySet keySet = new IndexKeySet(new Object[capacity]);
+        keySet.right = 0;
+        return keySet;
+    }
+
+    /**
+     * Remove all keys from the key set so it can be filled again.
+     *
+     * @return this instance.
+     */
+    public IndexKeySet clear() {
+        left = 0;
+        right = 0;
+        return this;
+    }
+
+    /**
+     * Append a key to the end of the key set.
+     *
+     * @param key the key to append.
+     * @return this instance.
+     */
+    public IndexKeySet add(Object key) {
+        if (right == keys.length)
+            keys = Arrays.copyOf(keys, Math.max(4, keys.length * 2));
+        keys[right++] = key;
+        return this;
+    }
+
+    /**
+     * Get the number of keys left in the key set.
+     *
+     * @return the number of keys left.
+     */
+    public int size() {
+        return right - left;
+    }
+
+    /**
+     * Get a key without removing it.
+     *
+     * @param i the position of the key, relative to the next key.
+     * @return the Object that represents the key.
+     */
+    public Object get(int i) {
+        return keys[left + i];
+    }
+
     /**
      * Get and remove the next key.
      *
@@ -117,7 +175,11 @@ public class IndexKeySet {
      * @return <em>true</em> if popping keys would eventually return null, <em>false</em> otherwise.
      */
     public boolean hasNull() {
-        return Arrays.stream(keys).skip(left).limit(right - left).anyMatch(Objects::isNull);
+        for (int i = left; i < right; i++) {
+            if (keys[i] == null)
+                return true;
+        }
+        return false;
     }
 
 }
@@ -0,0 +1,54 @@
+package com.baldrichcorp.potts.index.query;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Response to an <em>IN</em> query (see {@code AnyOf}): the number of observations of every key tuple the query
+ * stands for, in the order of the values given, and their sum.
+ *
+ * @author Santiago Baldrich.
+ */
+@ToString
+public class MultiKeyResponse {
+
+    @Getter
+    private int total;
+    private final Map<List<Object>, Integer> counts = new LinkedHashMap<>();
+
+    /**
+     * Record the result for one key tuple.
+     *
+     * @param tuple the keys, one value per level.
+     * @param count the number of observations of the tuple.
+     * @return this instance.
+     */
+    public MultiKeyResponse add(Object[] tuple, int count) {
+        counts.merge(Collections.unmodifiableList(Arrays.asList(tuple.clone())), count, Integer::sum);
+        total += count;
+        return this;
+    }
+
+    /**
+     * Get the result for one key tuple.
+     *
+     * @param tuple the keys, one value per level.
+     * @return the number of observations of the tuple, 0 if it was not part of the query.
+     */
+    public int get(Object... tuple) {
+        return counts.getOrDefault(Arrays.asList(tuple), 0);
+    }
+
+    /**
+     * @return the number of observations of every key tuple of the query.
+     */
+    public Map<List<Object>, Integer> getCounts() {
+        return Collections.unmodifiableMap(counts);
+    }
+}
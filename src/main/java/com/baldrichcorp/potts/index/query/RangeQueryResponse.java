@@ -24,21 +24,33 @@ import java.util.concurrent.ConcurrentHashMap;
 public class RangeQueryResponse {
 
     private final QueryType type;
-    private Map<Entry<String, QueryRange>, Integer> response = new ConcurrentHashMap<>();
+    private Map<Entry<String, QueryRange<?>>, Integer> response = new ConcurrentHashMap<>();
+    private Map<Entry<String, QueryRange<?>>, Aggregate> aggregates = new ConcurrentHashMap<>();
 
-    public RangeQueryResponse add(String indexId, QueryRange range, int answer) {
+    public RangeQueryResponse add(String indexId, QueryRange<?> range, int answer) {
         this.response.put(new SimpleEntry<>(indexId, range), answer);
         return this;
     }
 
-    public Integer get(String indexId, QueryRange range) {
+    public RangeQueryResponse add(String indexId, QueryRange<?> range, Aggregate answer) {
+        this.aggregates.put(new SimpleEntry<>(indexId, range), answer);
+        return this;
+    }
+
+    public Integer get(String indexId, QueryRange<?> range) {
         return this.response.get(new SimpleEntry<>(indexId, range));
     }
 
+    public Aggregate getAggregate(String indexId, QueryRange<?> range) {
+        return this.aggregates.get(new SimpleEntry<>(indexId, range));
+    }
+
     public RangeQueryResponse merge(RangeQueryResponse that) {
         RangeQueryResponse merged = new RangeQueryResponse(this.type);
         merged.response = new ConcurrentHashMap<>(this.response);
         merged.response.putAll(that.response);
+        merged.aggregates = new ConcurrentHashMap<>(this.aggregates);
+        merged.aggregates.putAll(that.aggregates);
         return merged;
     }
 
@@ -50,8 +62,27 @@ public class RangeQueryResponse {
         return responseMap;
     }
 
+    /**
+     * Flatten the aggregates of this response into a map of column names to values, with one column per statistic.
+     * Statistics that are undefined for an empty aggregate are mapped to null.
+     *
+     * @return a {@code Map} from column names to the statistics of the aggregates.
+     */
+    public Map<String, Double> getAggregateMap() {
+        Map<String, Double> aggregateMap = new HashMap<>();
+        aggregates.entrySet().stream().forEach(e -> {
+            String prefix = String.format("%s_%s_%s", e.getKey().getKey(), this.type, e.getKey().getValue().getName());
+            Aggregate aggregate = e.getValue();
+            aggregateMap.put(prefix + "_sum", aggregate.getSum());
+            aggregateMap.put(prefix + "_min", aggregate.isEmpty() ? null : aggregate.getMin());
+            aggregateMap.put(prefix + "_max", aggregate.isEmpty() ? null : aggregate.getMax());
+            aggregateMap.put(prefix + "_avg", aggregate.isEmpty() ? null : aggregate.getAverage());
+        });
+        return aggregateMap;
+    }
+
     public enum QueryType {
-        JOINT("J"), COMBINATION("C");
+        JOINT("J"), COMBINATION("C"), AGGREGATE("A");
 
         private final String symbol;
 
@@ -0,0 +1,50 @@
+package com.baldrichcorp.potts.index.query;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * Represents a range of interest whose bounds are relative to a reference position, such as the position of the
+ * element being scored. It is turned into a {@code QueryRange} once the reference position is known.
+ *
+ * @author Santiago Baldrich
+ */
+@ToString(of = "name")
+@Getter
+public class RelativeRange<K extends Comparable<? super K>> {
+
+    final String name;
+    final UnaryOperator<K> start;
+    final UnaryOperator<K> end;
+
+    private RelativeRange(String name, UnaryOperator<K> start, UnaryOperator<K> end) {
+        this.name = name;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Create a new RelativeRange from the given arguments.
+     *
+     * @param name  the name of the range, used as the name of every {@code QueryRange} obtained from it.
+     * @param start function that obtains the lower bound of the range from the reference position.
+     * @param end   function that obtains the upper bound of the range from the reference position.
+     * @param <K>   the type of the positions. Must implement {@code Comparable}.
+     * @return a RelativeRange object with the given parameters as attributes.
+     */
+    public static <K extends Comparable<? super K>> RelativeRange<K> of(String name, UnaryOperator<K> start, UnaryOperator<K> end) {
+        return new RelativeRange<>(name, start, end);
+    }
+
+    /**
+     * Get the absolute range for the given reference position.
+     *
+     * @param pos the reference position.
+     * @return a {@code QueryRange} with the bounds of this range evaluated at <em>pos</em>.
+     */
+    public QueryRange<K> at(K pos) {
+        return QueryRange.of(name, start.apply(pos), end.apply(pos));
+    }
+}
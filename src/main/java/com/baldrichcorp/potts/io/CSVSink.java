@@ -0,0 +1,99 @@
+package com.baldrichcorp.potts.io;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@code Sink} that writes rows to a csv file as soon as they are received. The header is either given on
+ * construction or taken from the (sorted) keys of the first row, columns missing from a row are written as
+ * {@value CSVProducer#NOT_APPLICABLE}.
+ *
+ * @author Santiago Baldrich.
+ */
+@Slf4j
+public class CSVSink implements Sink<Map<String, ?>> {
+
+    private final BufferedWriter writer;
+    private final String delimiter;
+    private String[] columns;
+
+    /**
+     * Initializes a new {@code CSVSink} with the given parameters.
+     *
+     * @param path      the route to write the csv file into.
+     * @param delimiter the delimiter of the csv file.
+     */
+    public CSVSink(String path, String delimiter) {
+        this.delimiter = delimiter;
+        try {
+            this.writer = Files.newBufferedWriter(Paths.get(path));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Initializes a new {@code CSVSink} that writes the given columns, in the given order.
+     *
+     * @param path      the route to write the csv file into.
+     * @param delimiter the delimiter of the csv file.
+     * @param columns   the header of the file, other keys of the rows are ignored.
+     */
+    public CSVSink(String path, String delimiter, List<String> columns) {
+        this(path, delimiter);
+        this.columns = columns.toArray(new String[columns.size()]);
+        try {
+            writer.append(String.join(delimiter, columns)).append('\n');
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Initializes a new {@code CSVSink} with the default delimiter.
+     *
+     * @param path the route to write the csv file into.
+     */
+    public CSVSink(String path) {
+        this(path, CSVProducer.DEFAULT_CSV_DELIMITER);
+    }
+
+    /**
+     * Write a row to the file.
+     *
+     * @param row a map from column names to values.
+     */
+    @Override
+    public void accept(Map<String, ?> row) {
+        try {
+            if (columns == null) {
+                columns = row.keySet().stream().sorted().toArray(String[]::new);
+                writer.append(Stream.of(columns).collect(Collectors.joining(delimiter, "", "\n")));
+            }
+            writer.append(Stream.of(columns)
+                    .map(row::get)
+                    .map(v -> v == null ? CSVProducer.NOT_APPLICABLE : String.valueOf(v))
+                    .collect(Collectors.joining(delimiter, "", "\n")));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            log.error("Couldn't close csv file", ex);
+        }
+    }
+}
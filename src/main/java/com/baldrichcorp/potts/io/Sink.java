@@ -0,0 +1,14 @@
+package com.baldrichcorp.potts.io;
+
+/**
+ * Simple interface to mark classes that can write objects of a given type to some destination, one at a time.
+ * @param <T> The type of objects that can be written by the implementing class.
+ *
+ * @author Santiago Baldrich.
+ */
+public interface Sink<T> extends AutoCloseable {
+    void accept(T t);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,158 @@
+package com.baldrichcorp.potts.job;
+
+import com.baldrichcorp.potts.index.MapMultiCriteriaRangeQueryIndex;
+import com.baldrichcorp.potts.index.MultiCriteriaRangeQueryIndex;
+import com.baldrichcorp.potts.io.CSVSink;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes a csv file and computes, for every row, the queries and counts defined by a {@code JobConfig}, writing one
+ * output row per input row.
+ * <p>
+ * The job makes two passes over the input, since every row must be queried against the fully built index: an
+ * ingest pass (read &rarr; parse &rarr; index) and a query pass (read &rarr; parse &rarr; query &rarr; write). Within
+ * each pass the stages run concurrently on a {@code Pipeline}, with the parallelism given by the configuration, so
+ * reading and writing overlap with parsing, indexing and querying. Reading and writing are single threaded. Output
+ * rows are written in the order they are computed, use <em>passthrough</em> columns to identify them. Every input
+ * row must fit in a single line.
+ *
+ * @author Santiago Baldrich.
+ */
+@Slf4j
+public class BatchJob {
+
+    private static final String CLASSPATH = "classpath:";
+
+    private final JobConfig config;
+    private final MultiCriteriaRangeQueryIndex<String[], Long> index = new MapMultiCriteriaRangeQueryIndex<>();
+    private final CSVFormat format;
+    private Map<String, Integer> header;
+
+    public BatchJob(JobConfig config) {
+        this.config = config;
+        this.format = CSVFormat.RFC4180.withDelimiter(config.getDelimiter()).withTrim();
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1)
+            throw new IllegalArgumentException("Usage: BatchJob <job.properties>");
+        new BatchJob(JobConfig.load(Paths.get(args[0]))).run();
+    }
+
+    /**
+     * Run the job.
+     */
+    public void run() {
+        Instant start = Instant.now();
+        try (BufferedReader reader = open()) {
+            header = header(reader.readLine());
+            config.getIndices().forEach((id, columns) -> {
+                int[] positions = columns(columns);
+                index.define(id, (row, keys) -> {
+                    for (int c : positions)
+                        keys.add(row[c]);
+                });
+            });
+            int position = columns(Collections.singletonList(config.getPosition()))[0];
+            Pipeline.from("read", reader.lines().iterator(), config.getCapacity())
+                    .map("parse", config.getParseParallelism(), this::parse)
+                    .forEach("index", config.getIndexParallelism(), row -> index.add(row, Long.valueOf(row[position])));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        log.info("Indexed in {}", Duration.between(start, Instant.now()));
+
+        start = Instant.now();
+        int[] passthrough = columns(config.getPassthrough());
+        try (BufferedReader reader = open();
+             CSVSink sink = config.getColumns().isEmpty()
+                     ? new CSVSink(config.getOutput(), config.getOutputDelimiter())
+                     : new CSVSink(config.getOutput(), config.getOutputDelimiter(), config.getColumns())) {
+            reader.readLine();
+            Pipeline.from("read", reader.lines().iterator(), config.getCapacity())
+                    .map("parse", config.getParseParallelism(), this::parse)
+                    .map("query", config.getQueryParallelism(), row -> {
+                        Map<String, Object> out = new LinkedHashMap<>();
+                        for (int i = 0; i < passthrough.length; i++)
+                            out.put(config.getPassthrough().get(i), row[passthrough[i]]);
+                        if (!config.getQuery().isEmpty())
+                            out.putAll(index.query(row, config.getQuery(), config.getRanges()).getResponseMap());
+                        if (!config.getCount().isEmpty())
+                            out.putAll(index.count(row, config.getCount(), config.getRanges()).getResponseMap());
+                        return out;
+                    })
+                    .forEach("write", 1, sink::accept);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        log.info("Queried in {}", Duration.between(start, Instant.now()));
+    }
+
+    private BufferedReader open() throws IOException {
+        String input = config.getInput();
+        InputStream stream = input.startsWith(CLASSPATH)
+                ? ClassLoader.getSystemClassLoader().getResourceAsStream(input.substring(CLASSPATH.length()))
+                : Files.newInputStream(Paths.get(input));
+        if (stream == null)
+            throw new IllegalArgumentException(String.format("Couldn't find input '%s'", input));
+        return new BufferedReader(new InputStreamReader(stream));
+    }
+
+    private Map<String, Integer> header(String line) {
+        if (line == null)
+            throw new IllegalArgumentException(String.format("Input '%s' is empty", config.getInput()));
+        String[] names = parse(line);
+        if (names == null)
+            throw new IllegalArgumentException(String.format("Input '%s' has no header, its first line is blank", config.getInput()));
+        Map<String, Integer> header = new HashMap<>();
+        for (int i = 0; i < names.length; i++)
+            header.put(names[i], i);
+        return header;
+    }
+
+    private int[] columns(List<String> names) {
+        int[] columns = new int[names.size()];
+        for (int i = 0; i < columns.length; i++) {
+            Integer column = header.get(names.get(i));
+            if (column == null)
+                throw new IllegalArgumentException(String.format("There is no column '%s' in '%s'", names.get(i), config.getInput()));
+            columns[i] = column;
+        }
+        return columns;
+    }
+
+    /**
+     * Split a line of the input into its fields. Blank lines are dropped.
+     */
+    private String[] parse(String line) {
+        if (line.trim().isEmpty())
+            return null;
+        try (CSVParser parser = CSVParser.parse(line, format)) {
+            CSVRecord record = parser.iterator().next();
+            String[] fields = new String[record.size()];
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = record.get(i);
+            return fields;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.baldrichcorp.potts.job;
+
+import com.baldrichcorp.potts.index.query.QueryRange;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Definition of a {@code BatchJob}, read from a properties file:
+ * <pre>
+ * # a file, or a resource of the classpath prefixed with classpath:
+ * input = data/persons.csv
+ * delimiter = ,
+ * # column that holds the (integral) position of each row
+ * position = pos
+ * # key columns of each sub-index, in order
+ * indices = Na, Em, NaEm
+ * index.Na = name
+ * index.Em = email
+ * index.NaEm = name, email
+ * # inclusive bounds of each range
+ * ranges = all, four
+ * range.all = 1, 10
+ * range.four = 4, 4
+ * # sub-indices queried and counted for every row
+ * query = Na, Em
+ * count = NaEm
+ * output = output.csv
+ * output.delimiter = \t
+ * # input columns copied to every output row and, optionally, the header of the output (default: every column, sorted)
+ * passthrough = name, pos
+ * columns = name, pos, Na_J_all
+ * # capacity of the queues between stages and threads of the parse, index and query stages
+ * queue.capacity = 1024
+ * parallelism.parse = 2
+ * parallelism.index = 1
+ * parallelism.query = 4
+ * </pre>
+ *
+ * @author Santiago Baldrich.
+ */
+@Getter
+@ToString
+public class JobConfig {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final String input;
+    private final char delimiter;
+    private final String position;
+    private final Map<String, List<String>> indices = new LinkedHashMap<>();
+    private final List<QueryRange<Long>> ranges = new ArrayList<>();
+    private final List<String> query;
+    private final List<String> count;
+    private final String output;
+    private final String outputDelimiter;
+    private final List<String> passthrough;
+    private final List<String> columns;
+    private final int capacity;
+    private final int parseParallelism;
+    private final int indexParallelism;
+    private final int queryParallelism;
+
+    private JobConfig(Properties properties) {
+        input = required(properties, "input");
+        String delimiter = properties.getProperty("delimiter", ",");
+        if (delimiter.length() != 1)
+            throw new IllegalArgumentException(String.format("The input delimiter must be a single character: '%s'", delimiter));
+        this.delimiter = delimiter.charAt(0);
+        position = required(properties, "position");
+        for (String id : list(required(properties, "indices")))
+            indices.put(id, list(required(properties, "index." + id)));
+        for (String name : list(required(properties, "ranges"))) {
+            List<String> bounds = list(required(properties, "range." + name));
+            if (bounds.size() != 2)
+                throw new IllegalArgumentException(String.format("Range '%s' must have a start and an end.", name));
+            ranges.add(QueryRange.of(name, Long.valueOf(bounds.get(0)), Long.valueOf(bounds.get(1))));
+        }
+        query = list(properties.getProperty("query", ""));
+        count = list(properties.getProperty("count", ""));
+        for (String id : query)
+            checkDefined(id);
+        for (String id : count)
+            checkDefined(id);
+        output = required(properties, "output");
+        outputDelimiter = properties.getProperty("output.delimiter", "\t");
+        passthrough = list(properties.getProperty("passthrough", ""));
+        columns = list(properties.getProperty("columns", ""));
+        capacity = Integer.parseInt(properties.getProperty("queue.capacity", String.valueOf(DEFAULT_CAPACITY)));
+        parseParallelism = Integer.parseInt(properties.getProperty("parallelism.parse", "1"));
+        indexParallelism = Integer.parseInt(properties.getProperty("parallelism.index", "1"));
+        queryParallelism = Integer.parseInt(properties.getProperty("parallelism.query", "1"));
+    }
+
+    public static JobConfig from(Properties properties) {
+        return new JobConfig(properties);
+    }
+
+    public static JobConfig load(Path path) {
+        try (Reader reader = Files.newBufferedReader(path)) {
+            Properties properties = new Properties();
+            properties.load(reader);
+            return from(properties);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void checkDefined(String id) {
+        if (!indices.containsKey(id))
+            throw new IllegalArgumentException(String.format("There is no index with identifier '%s'", id));
+    }
+
+    private static String required(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty())
+            throw new IllegalArgumentException(String.format("Missing required property '%s'", key));
+        return value.trim();
+    }
+
+    private static List<String> list(String value) {
+        List<String> list = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty())
+                list.add(item.trim());
+        }
+        return Collections.unmodifiableList(list);
+    }
+}
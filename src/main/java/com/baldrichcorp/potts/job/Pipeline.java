@@ -0,0 +1,193 @@
+package com.baldrichcorp.potts.job;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A chain of concurrent stages connected by bounded queues. The source is drained by a single thread and every
+ * other stage runs on its own pool of threads, so I/O-bound and CPU-bound stages overlap. A stage that falls
+ * behind fills the queue in front of it, which blocks the stages upstream (backpressure) instead of buffering the
+ * whole input in memory.
+ * <pre>
+ * Pipeline.from("read", lines, 1024)
+ *         .map("parse", 2, parser)
+ *         .forEach("index", 1, index::add);
+ * </pre>
+ * Stages are defined lazily, nothing runs until {@link #forEach(String, int, Consumer)} is called. Elements may
+ * reach a stage in a different order than the one they were produced in if any stage upstream has more than one
+ * thread.
+ *
+ * @param <T> the type of the elements produced by the last stage.
+ * @author Santiago Baldrich.
+ */
+@Slf4j
+public class Pipeline<T> {
+
+    private static final Object END = new Object();
+
+    private final int capacity;
+    private final Iterator<?> source;
+    private final List<Stage> stages;
+
+    private Pipeline(int capacity, Iterator<?> source, List<Stage> stages) {
+        this.capacity = capacity;
+        this.source = source;
+        this.stages = stages;
+    }
+
+    /**
+     * Start a pipeline.
+     *
+     * @param name     the name of the source stage.
+     * @param source   the elements to feed the pipeline with, read by a single thread.
+     * @param capacity the capacity of each of the queues between stages.
+     * @param <T>      the type of the elements.
+     * @return a pipeline that produces the elements of the source.
+     */
+    public static <T> Pipeline<T> from(String name, Iterator<? extends T> source, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity of the queues must be positive.");
+        return new Pipeline<>(capacity, source, Collections.singletonList(new Stage(name, 1, null)));
+    }
+
+    /**
+     * Add a stage that transforms every element. Null results are dropped.
+     *
+     * @param name        the name of the stage.
+     * @param parallelism the number of threads of the stage.
+     * @param function    the transformation, it must be safe to call it from several threads at once if
+     *                    <em>parallelism</em> is greater than 1.
+     * @param <R>         the type of the transformed elements.
+     * @return a pipeline that produces the transformed elements.
+     */
+    public <R> Pipeline<R> map(String name, int parallelism, Function<? super T, ? extends R> function) {
+        List<Stage> extended = new ArrayList<>(stages);
+        extended.add(new Stage(name, parallelism, function));
+        return new Pipeline<>(capacity, source, extended);
+    }
+
+    /**
+     * Add a final stage that consumes every element and run the pipeline until the source is exhausted and every
+     * element has been consumed.
+     *
+     * @param name        the name of the stage.
+     * @param parallelism the number of threads of the stage.
+     * @param action      the action to perform on every element.
+     * @throws IllegalStateException if any stage fails, the pipeline is stopped as soon as it happens.
+     */
+    public void forEach(String name, int parallelism, Consumer<? super T> action) {
+        map(name, parallelism, t -> {
+            action.accept(t);
+            return null;
+        }).run();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run() {
+        List<BlockingQueue<Object>> queues = new ArrayList<>();
+        for (int i = 1; i < stages.size(); i++)
+            queues.add(new ArrayBlockingQueue<>(capacity));
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        threads.add(new Thread(() -> {
+            Stage stage = stages.get(0);
+            try {
+                while (source.hasNext()) {
+                    queues.get(0).put(source.next());
+                    stage.processed.incrementAndGet();
+                }
+                for (int n = 0; n < stages.get(1).parallelism; n++)
+                    queues.get(0).put(END);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable ex) {
+                fail(stage, ex, failure, threads);
+            }
+        }, stages.get(0).name));
+
+        for (int i = 1; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            BlockingQueue<Object> in = queues.get(i - 1);
+            BlockingQueue<Object> out = i < queues.size() ? queues.get(i) : null;
+            int downstream = out == null ? 0 : stages.get(i + 1).parallelism;
+            AtomicInteger running = new AtomicInteger(stage.parallelism);
+            for (int n = 0; n < stage.parallelism; n++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        for (Object element = in.take(); element != END; element = in.take()) {
+                            Object result = ((Function<Object, Object>) stage.function).apply(element);
+                            stage.processed.incrementAndGet();
+                            if (result != null && out != null)
+                                out.put(result);
+                        }
+                        if (running.decrementAndGet() == 0) {
+                            for (int d = 0; d < downstream; d++)
+                                out.put(END);
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } catch (Throwable ex) {
+                        fail(stage, ex, failure, threads);
+                    }
+                }, stage.name + "-" + n));
+            }
+        }
+
+        long start = System.nanoTime();
+        synchronized (threads) {
+            threads.forEach(Thread::start);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                threads.forEach(Thread::interrupt);
+                throw new IllegalStateException("Interrupted while waiting for the pipeline to finish.", ex);
+            }
+        }
+        if (failure.get() != null)
+            throw failure.get();
+        for (Stage stage : stages)
+            log.debug("Stage '{}' ({} threads) processed {} elements", stage.name, stage.parallelism, stage.processed.get());
+        log.debug("Pipeline finished in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Record the first failure, errors included, and stop every thread of the pipeline.
+     */
+    private static void fail(Stage stage, Throwable ex, AtomicReference<RuntimeException> failure, List<Thread> threads) {
+        if (failure.compareAndSet(null, new IllegalStateException(String.format("Stage '%s' failed.", stage.name), ex))) {
+            synchronized (threads) {
+                threads.forEach(Thread::interrupt);
+            }
+        }
+    }
+
+    private static final class Stage {
+        final String name;
+        final int parallelism;
+        final Function<?, ?> function;
+        final AtomicLong processed = new AtomicLong();
+
+        Stage(String name, int parallelism, Function<?, ?> function) {
+            if (parallelism < 1)
+                throw new IllegalArgumentException(String.format("The parallelism of stage '%s' must be positive.", name));
+            this.name = name;
+            this.parallelism = parallelism;
+            this.function = function;
+        }
+    }
+}
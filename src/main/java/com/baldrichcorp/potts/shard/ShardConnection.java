@@ -0,0 +1,294 @@
+package com.baldrichcorp.potts.shard;
+
+import com.baldrichcorp.potts.index.query.Aggregate;
+import com.baldrichcorp.potts.index.query.MultiKeyResponse;
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connection of a {@code ShardRouter} to one of its {@code ShardServer}s. Operations are appended to a frame that
+ * is only sent when results are needed or when the router decides to flush it, so many writes travel in a single
+ * round trip. Results of writes that were appended without waiting for them are skipped when the frame is answered,
+ * frames of such writes are sent without waiting for the response to the previous one.
+ * <p>
+ * Connections must be locked around every use.
+ *
+ * @author Santiago Baldrich.
+ * @see ShardProtocol
+ */
+final class ShardConnection implements Closeable {
+
+    private static final int MAX_IN_FLIGHT = 2;
+
+    @Getter
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    private final DataOutputStream operations = new DataOutputStream(frame);
+    private final Deque<Integer> inFlight = new ArrayDeque<>();
+    @Getter
+    private int pending;
+    private int skipped;
+
+    /**
+     * Initializes a new {@code ShardConnection}, connected to the given server.
+     *
+     * @throws UncheckedIOException if the server can't be reached.
+     */
+    ShardConnection(InetSocketAddress address) {
+        this.address = address;
+        try {
+            this.socket = new Socket(address.getAddress(), address.getPort());
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(String.format("Couldn't connect to the shard at %s", address), ex);
+        }
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    void define(String id) {
+        try {
+            begin(ShardProtocol.DEFINE, id);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Append an addition.
+     *
+     * @param measure the measure of the occurrence, {@code NaN} if it has none.
+     */
+    void add(String id, ShardProtocol.KeyBuffer keys, long pos, double measure) {
+        try {
+            boolean measured = !Double.isNaN(measure);
+            begin(measured ? ShardProtocol.ADD_MEASURED : ShardProtocol.ADD, id);
+            keys.writeTo(operations);
+            operations.writeLong(pos);
+            if (measured)
+                operations.writeDouble(measure);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Append a removal.
+     *
+     * @param skip whether to skip its result instead of reading it with {@link #readBoolean()}.
+     */
+    void remove(String id, ShardProtocol.KeyBuffer keys, long pos, boolean skip) {
+        try {
+            begin(ShardProtocol.REMOVE, id);
+            keys.writeTo(operations);
+            operations.writeLong(pos);
+            if (skip)
+                skipped++;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Append a move.
+     *
+     * @param skip whether to skip its result instead of reading it with {@link #readBoolean()}.
+     */
+    void move(String id, ShardProtocol.KeyBuffer keys, long oldPos, long newPos, boolean skip) {
+        try {
+            begin(ShardProtocol.MOVE, id);
+            keys.writeTo(operations);
+            operations.writeLong(oldPos);
+            operations.writeLong(newPos);
+            if (skip)
+                skipped++;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Append a query over a range: {@code QUERY}, {@code AGGREGATE}, {@code COUNT}, {@code ACCUMULATE} or
+     * {@code QUERY_IN}.
+     */
+    void range(byte code, String id, ShardProtocol.KeyBuffer keys, long start, long end) {
+        try {
+            begin(code, id);
+            keys.writeTo(operations);
+            operations.writeLong(start);
+            operations.writeLong(end);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Send the pending frame, if any, without waiting for its response.
+     *
+     * @throws IllegalArgumentException if the frame is larger than servers accept, it is discarded.
+     */
+    void send() {
+        if (pending == 0)
+            return;
+        try {
+            if (frame.size() > ShardProtocol.MAX_FRAME_LENGTH)
+                throw new IllegalArgumentException(String.format("A frame of %d bytes exceeds the limit of %d bytes",
+                        frame.size(), ShardProtocol.MAX_FRAME_LENGTH));
+            out.writeInt(frame.size());
+            out.writeInt(pending);
+            frame.writeTo(out);
+            out.flush();
+            inFlight.add(skipped);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(String.format("Couldn't send a request to the shard at %s", address), ex);
+        } finally {
+            frame.reset();
+            pending = 0;
+            skipped = 0;
+        }
+    }
+
+    /**
+     * Send the pending frame, whose results are all skipped, without waiting for its response. The response to the
+     * frame sent before it, if any, is awaited first, so the shard applies a frame while the next one is filled but
+     * never falls more than one frame behind.
+     */
+    void sendBatch() {
+        if (pending == 0)
+            return;
+        while (inFlight.size() > MAX_IN_FLIGHT - 1)
+            receiveOne(false);
+        send();
+    }
+
+    /**
+     * Wait for the responses to the frames sent and skip the results of their writes that were appended without
+     * waiting for them, the rest of the results of the frame sent last are read next. If any frame failed, all the
+     * results are skipped.
+     *
+     * @throws IllegalArgumentException if the server rejected an operation because of its arguments.
+     * @throws IllegalStateException    if the server failed to execute an operation.
+     */
+    void receive() {
+        RuntimeException failure = null;
+        while (!inFlight.isEmpty()) {
+            try {
+                receiveOne(inFlight.size() == 1 && failure == null);
+            } catch (IllegalArgumentException | IllegalStateException ex) {
+                if (failure == null)
+                    failure = ex;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Send the pending frame and wait for its response.
+     */
+    void exchange() {
+        send();
+        receive();
+    }
+
+    boolean readBoolean() {
+        try {
+            return in.readBoolean();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    int readInt() {
+        try {
+            return in.readInt();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    Aggregate readAggregate() {
+        try {
+            int count = in.readInt();
+            return count == 0 ? Aggregate.EMPTY : new Aggregate(count, in.readDouble(), in.readDouble(), in.readDouble());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Read the result of an <em>IN</em> query, adding the count of every tuple to the given response.
+     */
+    void readMultiKey(MultiKeyResponse response) {
+        try {
+            for (int tuples = in.readInt(); tuples > 0; tuples--) {
+                Object[] tuple = ShardProtocol.readKeys(in);
+                response.add(tuple, in.readInt());
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Wait for the response to the oldest frame in flight.
+     *
+     * @param keep whether to leave the results that are not skipped to be read next, instead of skipping all of them.
+     */
+    private void receiveOne(boolean keep) {
+        int skip = inFlight.poll();
+        try {
+            byte status = in.readByte();
+            int length = in.readInt();
+            if (status == ShardProtocol.OK) {
+                in.skipBytes(keep ? skip : length);
+                return;
+            }
+            byte[] message = new byte[length];
+            in.readFully(message);
+            String error = String.format("The shard at %s failed: %s", address, new String(message, StandardCharsets.UTF_8));
+            if (status == ShardProtocol.ILLEGAL_ARGUMENT)
+                throw new IllegalArgumentException(error);
+            throw new IllegalStateException(error);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(String.format("Couldn't read a response of the shard at %s", address), ex);
+        }
+    }
+
+    private void begin(byte code, String id) throws IOException {
+        operations.writeByte(code);
+        operations.writeUTF(id);
+        pending++;
+    }
+}
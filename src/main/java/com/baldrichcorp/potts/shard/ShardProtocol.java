@@ -0,0 +1,191 @@
+package com.baldrichcorp.potts.shard;
+
+import com.baldrichcorp.potts.index.query.AnyOf;
+import com.baldrichcorp.potts.index.query.IndexKeySet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol spoken between a {@code ShardRouter} and its {@code ShardServer}s. Requests are sent in frames
+ * that batch any number of operations and are answered by a single response:
+ * <pre>
+ * request:   frame length (int) | operations (int) | operations...
+ * operation: code (byte) | sub-index identifier (UTF) | keys | positions (encoded longs) | measure (double)
+ * keys:      number of keys (int) | tag (byte) and value of every key
+ * response:  status (byte) | length (int) | results of the operations that have one, in order, if the status
+ *            is OK, the error message (UTF-8) otherwise
+ * </pre>
+ * Positions travel encoded by the {@code PositionCodec} of the router, servers index the encoded values, which sort
+ * like the positions themselves. Keys are strings, longs, integers or {@code AnyOf} sets of them: servers never
+ * deserialize objects, so a connection can't make them instantiate arbitrary classes. Frames, and every length read
+ * from them, are limited to {@link #MAX_FRAME_LENGTH} bytes.
+ *
+ * @author Santiago Baldrich.
+ */
+final class ShardProtocol {
+
+    static final byte DEFINE = 1;
+    static final byte ADD = 2;
+    static final byte ADD_MEASURED = 3;
+    static final byte REMOVE = 4;
+    static final byte MOVE = 5;
+    static final byte QUERY = 6;
+    static final byte AGGREGATE = 7;
+    static final byte COUNT = 8;
+    static final byte ACCUMULATE = 9;
+    static final byte QUERY_IN = 10;
+
+    /**
+     * Largest frame, in bytes, that servers accept.
+     */
+    static final int MAX_FRAME_LENGTH = 64 << 20;
+
+    static final byte OK = 0;
+    static final byte ILLEGAL_ARGUMENT = 1;
+    static final byte ILLEGAL_STATE = 2;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte ANY_OF = 4;
+
+    private ShardProtocol() {
+    }
+
+    /**
+     * Write the keys of a key set.
+     */
+    static void writeKeys(DataOutput out, IndexKeySet keys) throws IOException {
+        out.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++)
+            writeKey(out, keys.get(i));
+    }
+
+    /**
+     * Write the keys of a tuple.
+     */
+    static void writeKeys(DataOutput out, Iterable<?> tuple, int size) throws IOException {
+        out.writeInt(size);
+        for (Object key : tuple)
+            writeKey(out, key);
+    }
+
+    /**
+     * Read the keys of a tuple, written by either of the {@code writeKeys} methods.
+     */
+    static Object[] readKeys(DataInput in) throws IOException {
+        Object[] keys = new Object[readLength(in)];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = readKey(in);
+        return keys;
+    }
+
+    private static void writeKey(DataOutput out, Object key) throws IOException {
+        if (key == null) {
+            out.writeByte(NULL);
+        } else if (key instanceof String) {
+            byte[] utf = ((String) key).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(utf.length);
+            out.write(utf);
+        } else if (key instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) key);
+        } else if (key instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) key);
+        } else if (key instanceof AnyOf) {
+            out.writeByte(ANY_OF);
+            out.writeInt(AnyOf.size(key));
+            for (int i = 0; i < AnyOf.size(key); i++)
+                writeKey(out, AnyOf.get(key, i));
+        } else {
+            throw new IllegalArgumentException(String.format("Keys sent to a shard must be strings, longs or integers: %s", key));
+        }
+    }
+
+    private static Object readKey(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case LONG:
+                return in.readLong();
+            case INTEGER:
+                return in.readInt();
+            case ANY_OF:
+                Object[] values = new Object[readLength(in)];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = readKey(in);
+                return AnyOf.of(values);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown key tag: %d", tag));
+        }
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read a length, checking that it fits in a frame before anything is allocated for it.
+     *
+     * @throws IllegalArgumentException if the length is negative or larger than {@link #MAX_FRAME_LENGTH}.
+     */
+    static int readLength(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException(String.format("Invalid length: %d", length));
+        return length;
+    }
+
+    /**
+     * Reusable buffer that holds the encoded keys of an operation, so they can be hashed to pick a shard and then
+     * copied into the frame of that shard.
+     */
+    static final class KeyBuffer extends ByteArrayOutputStream {
+
+        private final DataOutputStream out = new DataOutputStream(this);
+
+        /**
+         * Replace the contents of the buffer by the encoded keys of a key set.
+         *
+         * @return this instance.
+         */
+        KeyBuffer encode(IndexKeySet keys) {
+            reset();
+            try {
+                writeKeys(out, keys);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return this;
+        }
+
+        /**
+         * @return a hash of the encoded keys, which is the same on every process.
+         */
+        int hash() {
+            long h = 0x9E3779B97F4A7C15L;
+            for (int i = 0; i < count; i++) {
+                h ^= buf[i];
+                h *= 0x100000001B3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            return (int) h;
+        }
+    }
+}
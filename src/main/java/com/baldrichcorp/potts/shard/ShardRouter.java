@@ -0,0 +1,646 @@
+package com.baldrichcorp.potts.shard;
+
+import com.baldrichcorp.potts.index.KeyGenerator;
+import com.baldrichcorp.potts.index.MultiCriteriaRangeQueryIndex;
+import com.baldrichcorp.potts.index.PositionCodec;
+import com.baldrichcorp.potts.index.query.Aggregate;
+import com.baldrichcorp.potts.index.query.IndexKeySet;
+import com.baldrichcorp.potts.index.query.MultiKeyResponse;
+import com.baldrichcorp.potts.index.query.QueryRange;
+import com.baldrichcorp.potts.index.query.RangeQueryResponse;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * {@code MultiCriteriaRangeQueryIndex} partitioned across several {@code ShardServer}s, so the index can grow beyond
+ * the memory of a single process. The router keeps the key generators: keys are extracted locally and every key
+ * tuple of a sub-index is assigned to a shard by a hash of its encoded keys, so all the occurrences of a tuple live
+ * on the same shard.
+ * <p>
+ * Queries and aggregates on a full tuple are answered by its shard, counts, accumulations and <em>IN</em> queries
+ * are sent to every shard and their results added up. Writes that don't return a result are buffered per shard and
+ * sent in frames of up to <em>batchSize</em> operations, a frame is also sent before any read from its shard so
+ * reads always see the writes made before them. Call {@link #flush()} to send the buffered writes right away.
+ * <p>
+ * Routers are thread-safe, every shard serves one operation of the router at a time.
+ *
+ * @param <T> the type of the elements that can be handled by this index.
+ * @param <K> the type of the criterion used for comparison in queries.
+ * @author Santiago Baldrich.
+ * @see ShardServer
+ */
+@Slf4j
+public class ShardRouter<T, K extends Comparable<? super K>> implements MultiCriteriaRangeQueryIndex<T, K>, Closeable {
+
+    private static final int DEFAULT_BATCH_SIZE = 1024;
+    private static final int DEFAULT_KEY_CAPACITY = 4;
+
+    private final ShardConnection[] shards;
+    private final PositionCodec<K> codec;
+    private final int batchSize;
+    private final Map<String, KeyGenerator<T>> generators = new ConcurrentHashMap<>();
+    private volatile String[] identifiers = new String[0];
+    private final ThreadLocal<IndexKeySet> buffers = ThreadLocal.withInitial(() -> IndexKeySet.create(DEFAULT_KEY_CAPACITY));
+    private final ThreadLocal<ShardProtocol.KeyBuffer> encoded = ThreadLocal.withInitial(ShardProtocol.KeyBuffer::new);
+
+    /**
+     * Initializes a new {@code ShardRouter} connected to the given shards.
+     *
+     * @param shards the addresses of the shards, every router of an index must list them in the same order.
+     * @param codec  the codec used to send positions to the shards, it should be lossless.
+     */
+    public ShardRouter(List<InetSocketAddress> shards, PositionCodec<K> codec) {
+        this(shards, codec, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Initializes a new {@code ShardRouter} connected to the given shards.
+     *
+     * @param shards    the addresses of the shards, every router of an index must list them in the same order.
+     * @param codec     the codec used to send positions to the shards, it should be lossless.
+     * @param batchSize the number of writes buffered for a shard before they are sent.
+     * @throws java.io.UncheckedIOException if a shard can't be reached.
+     */
+    public ShardRouter(List<InetSocketAddress> shards, PositionCodec<K> codec, int batchSize) {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("At least one shard is required.");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("The batch size must be positive.");
+        this.shards = new ShardConnection[shards.size()];
+        for (int i = 0; i < this.shards.length; i++)
+            this.shards[i] = new ShardConnection(shards.get(i));
+        this.codec = codec;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(String indexIdentifier, T t, Function<T, IndexKeySet> keyGenerator, K pos) {
+        define(indexIdentifier, keyGenerator);
+        add(indexIdentifier, t, pos);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(String indexIdentifier, T t, K pos) {
+        add(indexIdentifier, t, pos, Double.NaN);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(T t, K pos) {
+        add(t, pos, Double.NaN);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(String indexIdentifier, T t, K pos, double measure) {
+        checkIndexAbsent(indexIdentifier);
+        IndexKeySet ks = keys(indexIdentifier, t);
+        if (ks.hasNull())
+            return;
+        ShardProtocol.KeyBuffer keys = encode(ks);
+        ShardConnection shard = shard(keys);
+        shard.lock();
+        try {
+            shard.add(indexIdentifier, keys, codec.encode(pos), measure);
+            batched(shard);
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void add(T t, K pos, double measure) {
+        long encodedPos = codec.encode(pos);
+        for (String id : identifiers) {
+            IndexKeySet ks = keys(id, t);
+            if (ks.hasNull())
+                continue;
+            ShardProtocol.KeyBuffer keys = encode(ks);
+            ShardConnection shard = shard(keys);
+            shard.lock();
+            try {
+                shard.add(id, keys, encodedPos, measure);
+                batched(shard);
+            } finally {
+                shard.unlock();
+            }
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean remove(String indexIdentifier, T t, K pos) {
+        checkIndexAbsent(indexIdentifier);
+        IndexKeySet ks = keys(indexIdentifier, t);
+        if (ks.hasNull())
+            return false;
+        ShardProtocol.KeyBuffer keys = encode(ks);
+        ShardConnection shard = shard(keys);
+        shard.lock();
+        try {
+            shard.remove(indexIdentifier, keys, codec.encode(pos), false);
+            shard.exchange();
+            return shard.readBoolean();
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void remove(T t, K pos) {
+        long encodedPos = codec.encode(pos);
+        for (String id : identifiers) {
+            IndexKeySet ks = keys(id, t);
+            if (ks.hasNull())
+                continue;
+            ShardProtocol.KeyBuffer keys = encode(ks);
+            ShardConnection shard = shard(keys);
+            shard.lock();
+            try {
+                shard.remove(id, keys, encodedPos, true);
+                batched(shard);
+            } finally {
+                shard.unlock();
+            }
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean move(String indexIdentifier, T t, K oldPos, K newPos) {
+        checkIndexAbsent(indexIdentifier);
+        IndexKeySet ks = keys(indexIdentifier, t);
+        if (ks.hasNull())
+            return false;
+        ShardProtocol.KeyBuffer keys = encode(ks);
+        ShardConnection shard = shard(keys);
+        shard.lock();
+        try {
+            shard.move(indexIdentifier, keys, codec.encode(oldPos), codec.encode(newPos), false);
+            shard.exchange();
+            return shard.readBoolean();
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void move(T t, K oldPos, K newPos) {
+        long oldEncoded = codec.encode(oldPos);
+        long newEncoded = codec.encode(newPos);
+        for (String id : identifiers) {
+            IndexKeySet ks = keys(id, t);
+            if (ks.hasNull())
+                continue;
+            ShardProtocol.KeyBuffer keys = encode(ks);
+            ShardConnection shard = shard(keys);
+            shard.lock();
+            try {
+                shard.move(id, keys, oldEncoded, newEncoded, true);
+                batched(shard);
+            } finally {
+                shard.unlock();
+            }
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void define(String indexIdentifier, Function<T, IndexKeySet> keyGenerator) {
+        define(indexIdentifier, KeyGenerator.of(keyGenerator));
+    }
+
+    /**
+     * @inheritDoc
+     * <p>
+     * The sub-index is defined on every shard, where it is backed by the implementation the shard was started with.
+     */
+    @Override
+    public synchronized void define(String indexIdentifier, KeyGenerator<T> keyGenerator) {
+        checkIndexPresent(indexIdentifier);
+        for (ShardConnection shard : shards) {
+            shard.lock();
+            try {
+                shard.define(indexIdentifier);
+                batched(shard);
+            } finally {
+                shard.unlock();
+            }
+        }
+        generators.put(indexIdentifier, keyGenerator);
+        String[] defined = Arrays.copyOf(identifiers, identifiers.length + 1);
+        defined[identifiers.length] = indexIdentifier;
+        identifiers = defined;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int query(String indexIdentifier, T t, K start, K end) {
+        checkIndexAbsent(indexIdentifier);
+        IndexKeySet ks = keys(indexIdentifier, t);
+        if (ks.hasNull())
+            return 0;
+        ShardProtocol.KeyBuffer keys = encode(ks);
+        ShardConnection shard = shard(keys);
+        shard.lock();
+        try {
+            shard.range(ShardProtocol.QUERY, indexIdentifier, keys, codec.encode(start), codec.encode(end));
+            shard.exchange();
+            return shard.readInt();
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public RangeQueryResponse query(T t, QueryRange<K>... ranges) {
+        return query(t, Arrays.asList(identifiers), Arrays.asList(ranges));
+    }
+
+    /**
+     * @inheritDoc
+     * <p>
+     * Every shard involved gets a single frame with all its queries.
+     */
+    @Override
+    public RangeQueryResponse query(T t, List<String> indexIds, List<QueryRange<K>> ranges) {
+        RangeQueryResponse response = new RangeQueryResponse(RangeQueryResponse.QueryType.JOINT);
+        routed(ShardProtocol.QUERY, t, indexIds, ranges,
+                (id, range, shard) -> response.add(id, range, shard == null ? -1 : shard.readInt()));
+        return response;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public Aggregate aggregate(String indexIdentifier, T t, K start, K end) {
+        checkIndexAbsent(indexIdentifier);
+        IndexKeySet ks = keys(indexIdentifier, t);
+        if (ks.hasNull())
+            return Aggregate.EMPTY;
+        ShardProtocol.KeyBuffer keys = encode(ks);
+        ShardConnection shard = shard(keys);
+        shard.lock();
+        try {
+            shard.range(ShardProtocol.AGGREGATE, indexIdentifier, keys, codec.encode(start), codec.encode(end));
+            shard.exchange();
+            return shard.readAggregate();
+        } finally {
+            shard.unlock();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     * <p>
+     * Every shard involved gets a single frame with all its aggregations.
+     */
+    @Override
+    public RangeQueryResponse aggregate(T t, List<String> indexIds, List<QueryRange<K>> ranges) {
+        RangeQueryResponse response = new RangeQueryResponse(RangeQueryResponse.QueryType.AGGREGATE);
+        routed(ShardProtocol.AGGREGATE, t, indexIds, ranges,
+                (id, range, shard) -> response.add(id, range, shard == null ? Aggregate.EMPTY : shard.readAggregate()));
+        return response;
+    }
+
+    /**
+     * @inheritDoc
+     * <p>
+     * Every shard gets a single frame with all the counts.
+     */
+    @Override
+    public RangeQueryResponse count(T t, List<String> indexIds, List<QueryRange<K>> ranges) {
+        RangeQueryResponse response = new RangeQueryResponse(RangeQueryResponse.QueryType.COMBINATION);
+        List<ShardProtocol.KeyBuffer> prefixes = new ArrayList<>();
+        for (String id : indexIds) {
+            checkIndexAbsent(id);
+            IndexKeySet ks = keys(id, t).drop();
+            prefixes.add(ks.hasNull() ? null : new ShardProtocol.KeyBuffer().encode(ks));
+        }
+        lockAll();
+        try {
+            for (int i = 0; i < indexIds.size(); i++) {
+                if (prefixes.get(i) == null)
+                    continue;
+                for (QueryRange<K> range : ranges) {
+                    for (ShardConnection shard : shards)
+                        shard.range(ShardProtocol.COUNT, indexIds.get(i), prefixes.get(i),
+                                codec.encode(range.getStart()), codec.encode(range.getEnd()));
+                }
+            }
+            exchangeAll();
+            for (int i = 0; i < indexIds.size(); i++) {
+                for (QueryRange<K> range : ranges) {
+                    int total = prefixes.get(i) == null ? -1 : 0;
+                    if (prefixes.get(i) != null) {
+                        for (ShardConnection shard : shards)
+                            total += shard.readInt();
+                    }
+                    response.add(indexIds.get(i), range, total);
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+        return response;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int count(String indexIdentifier, T t, K start, K end) {
+        checkIndexAbsent(indexIdentifier);
+        return fanOut(ShardProtocol.COUNT, indexIdentifier, keys(indexIdentifier, t).drop(), start, end);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public RangeQueryResponse count(T t, QueryRange<K>... ranges) {
+        return count(t, Arrays.asList(identifiers), Arrays.asList(ranges));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int count(String indexIdentifier, IndexKeySet keys, K start, K end) {
+        checkIndexAbsent(indexIdentifier);
+        return fanOut(ShardProtocol.COUNT, indexIdentifier, keys, start, end);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int accumulate(String indexIdentifier, T t, K start, K end) {
+        checkIndexAbsent(indexIdentifier);
+        return fanOut(ShardProtocol.ACCUMULATE, indexIdentifier, keys(indexIdentifier, t).drop(), start, end);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public int accumulate(String indexIdentifier, IndexKeySet keys, K start, K end) {
+        checkIndexAbsent(indexIdentifier);
+        return fanOut(ShardProtocol.ACCUMULATE, indexIdentifier, keys, start, end);
+    }
+
+    /**
+     * @inheritDoc
+     * <p>
+     * The tuples a key set stands for may live on different shards, so the query is sent to all of them.
+     */
+    @Override
+    public MultiKeyResponse queryIn(String indexIdentifier, IndexKeySet keys, K start, K end) {
+        checkIndexAbsent(indexIdentifier);
+        ShardProtocol.KeyBuffer encodedKeys = encode(keys);
+        MultiKeyResponse response = new MultiKeyResponse();
+        lockAll();
+        try {
+            for (ShardConnection shard : shards)
+                shard.range(ShardProtocol.QUERY_IN, indexIdentifier, encodedKeys, codec.encode(start), codec.encode(end));
+            exchangeAll();
+            for (ShardConnection shard : shards)
+                shard.readMultiKey(response);
+        } finally {
+            unlockAll();
+        }
+        return response;
+    }
+
+    /**
+     * Send the writes buffered for every shard and wait for them to be applied.
+     */
+    public void flush() {
+        for (ShardConnection shard : shards) {
+            shard.lock();
+            try {
+                shard.exchange();
+            } finally {
+                shard.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of shards the index is partitioned across.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Send the buffered writes and close the connections to the shards, which keep their partitions.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            for (ShardConnection shard : shards) {
+                try {
+                    shard.close();
+                } catch (IOException ex) {
+                    log.error("Couldn't close the connection to the shard at {}", shard.getAddress(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send an operation on the full tuples of an element to the shards that hold them, with a single frame per shard,
+     * and hand the results to a consumer in the order of the sub-indices and ranges.
+     */
+    private void routed(byte code, T t, List<String> indexIds, List<QueryRange<K>> ranges, Result<K> result) {
+        ShardProtocol.KeyBuffer[] keys = new ShardProtocol.KeyBuffer[indexIds.size()];
+        boolean[] involved = new boolean[shards.length];
+        for (int i = 0; i < keys.length; i++) {
+            checkIndexAbsent(indexIds.get(i));
+            IndexKeySet ks = keys(indexIds.get(i), t);
+            if (ks.hasNull())
+                continue;
+            keys[i] = new ShardProtocol.KeyBuffer().encode(ks);
+            involved[partition(keys[i])] = true;
+        }
+        for (int s = 0; s < shards.length; s++) {
+            if (involved[s])
+                shards[s].lock();
+        }
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == null)
+                    continue;
+                for (QueryRange<K> range : ranges)
+                    shard(keys[i]).range(code, indexIds.get(i), keys[i], codec.encode(range.getStart()), codec.encode(range.getEnd()));
+            }
+            for (int s = 0; s < shards.length; s++) {
+                if (involved[s])
+                    shards[s].send();
+            }
+            for (int s = 0; s < shards.length; s++) {
+                if (involved[s])
+                    shards[s].receive();
+            }
+            for (int i = 0; i < keys.length; i++) {
+                for (QueryRange<K> range : ranges)
+                    result.accept(indexIds.get(i), range, keys[i] == null ? null : shard(keys[i]));
+            }
+        } finally {
+            for (int s = 0; s < shards.length; s++) {
+                if (involved[s])
+                    shards[s].unlock();
+            }
+        }
+    }
+
+    /**
+     * Send an operation on a prefix to every shard and add up the results. Prefixes with a null key match nothing.
+     */
+    private int fanOut(byte code, String id, IndexKeySet keys, K start, K end) {
+        if (keys.hasNull())
+            return 0;
+        ShardProtocol.KeyBuffer encodedKeys = encode(keys);
+        long l = codec.encode(start);
+        long r = codec.encode(end);
+        lockAll();
+        try {
+            for (ShardConnection shard : shards)
+                shard.range(code, id, encodedKeys, l, r);
+            exchangeAll();
+            int total = 0;
+            for (ShardConnection shard : shards)
+                total += shard.readInt();
+            return total;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Send the frame of the shard once it holds a full batch of writes.
+     */
+    private void batched(ShardConnection shard) {
+        if (shard.getPending() >= batchSize)
+            shard.sendBatch();
+    }
+
+    /**
+     * Send the pending frame of every shard before waiting for any response, so the shards work on them at the same
+     * time.
+     */
+    private void exchangeAll() {
+        for (ShardConnection shard : shards)
+            shard.send();
+        for (ShardConnection shard : shards)
+            shard.receive();
+    }
+
+    /**
+     * Lock every shard, always in the same order.
+     */
+    private void lockAll() {
+        for (ShardConnection shard : shards)
+            shard.lock();
+    }
+
+    private void unlockAll() {
+        for (ShardConnection shard : shards)
+            shard.unlock();
+    }
+
+    private ShardConnection shard(ShardProtocol.KeyBuffer keys) {
+        return shards[partition(keys)];
+    }
+
+    private int partition(ShardProtocol.KeyBuffer keys) {
+        return Math.floorMod(keys.hash(), shards.length);
+    }
+
+    private ShardProtocol.KeyBuffer encode(IndexKeySet keys) {
+        return encoded.get().encode(keys);
+    }
+
+    /**
+     * Extract the keys of an element into the key set owned by the current thread. The returned key set is only
+     * valid until the next call to this method on the same thread.
+     */
+    private IndexKeySet keys(String id, T t) {
+        IndexKeySet keys = buffers.get().clear();
+        generators.get(id).generate(t, keys);
+        return keys;
+    }
+
+    /**
+     * Check whether an index with the given id is absent and throw an {@code IllegalArgumentException} if true.
+     */
+    private void checkIndexAbsent(String id) {
+        if (!generators.containsKey(id))
+            throw new IllegalArgumentException(
+                    String.format("There is no index with identifier '%s'", id));
+    }
+
+    /**
+     * Check whether an index with the given id has already been defined and throw an {@code IllegalStateException}
+     * if true.
+     */
+    private void checkIndexPresent(String id) {
+        if (generators.containsKey(id)) {
+            throw new IllegalStateException(
+                    String.format("An index with identifier '%s' has already been defined.", id));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Result<K extends Comparable<? super K>> {
+        /**
+         * @param shard the shard to read the result from, null if the element has null keys for the sub-index.
+         */
+        void accept(String id, QueryRange<K> range, ShardConnection shard);
+    }
+}
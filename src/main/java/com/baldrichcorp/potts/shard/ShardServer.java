@@ -0,0 +1,294 @@
+package com.baldrichcorp.potts.shard;
+
+import com.baldrichcorp.potts.index.KeyGenerator;
+import com.baldrichcorp.potts.index.MapMultiCriteriaRangeQueryIndex;
+import com.baldrichcorp.potts.index.MultisetRecursiveRangeQueryIndex;
+import com.baldrichcorp.potts.index.RecursiveRangeQueryIndex;
+import com.baldrichcorp.potts.index.VersionClock;
+import com.baldrichcorp.potts.index.query.Aggregate;
+import com.baldrichcorp.potts.index.query.IndexKeySet;
+import com.baldrichcorp.potts.index.query.MultiKeyResponse;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Hosts a partition of a {@code MultiCriteriaRangeQueryIndex} and serves it over TCP to {@code ShardRouter}s (see
+ * {@link ShardProtocol}). The elements of the hosted index are the key tuples computed by the routers, which keep the
+ * key generators, and its positions are the positions encoded by their codec. Sub-indices are defined as routers
+ * ask for them.
+ * <p>
+ * Every connection is served by a thread of its own, operations of a frame are executed in order. Servers can run
+ * within the process that routes to them or as processes of their own, several of which can share a machine:
+ * <pre>
+ * java -cp potts.jar com.baldrichcorp.potts.shard.ShardServer 7001
+ * </pre>
+ * Connections are not authenticated, so servers only listen on the loopback interface unless they are explicitly
+ * bound to another address (the optional second argument of the command above).
+ *
+ * @author Santiago Baldrich.
+ * @see ShardRouter
+ */
+@Slf4j
+public class ShardServer implements Closeable {
+
+    private static final KeyGenerator<Object[]> COPY = (tuple, keys) -> {
+        for (Object key : tuple)
+            keys.add(key);
+    };
+
+    @Getter
+    private final MapMultiCriteriaRangeQueryIndex<Object[], Long> index;
+    private final ServerSocket server;
+    private final Set<String> defined = new HashSet<>();
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Initializes a new {@code ShardServer} that listens on the loopback interface and whose sub-indices are backed
+     * by {@code MultisetRecursiveRangeQueryIndex} instances. The server does not accept connections until it is
+     * started.
+     *
+     * @param port the port to listen on, 0 for any free port.
+     */
+    public ShardServer(int port) {
+        this(port, MultisetRecursiveRangeQueryIndex::new);
+    }
+
+    /**
+     * Initializes a new {@code ShardServer} that listens on the loopback interface. The server does not accept
+     * connections until it is started.
+     *
+     * @param port           the port to listen on, 0 for any free port.
+     * @param implementation function that creates the {@code RecursiveRangeQueryIndex} that backs each sub-index.
+     */
+    public ShardServer(int port, Function<VersionClock, ? extends RecursiveRangeQueryIndex<Object, Long>> implementation) {
+        this(InetAddress.getLoopbackAddress(), port, implementation);
+    }
+
+    /**
+     * Initializes a new {@code ShardServer} that listens on the given address. Connections are not authenticated, so
+     * the address should only be reachable by trusted routers. The server does not accept connections until it is
+     * started.
+     *
+     * @param address        the address to listen on.
+     * @param port           the port to listen on, 0 for any free port.
+     * @param implementation function that creates the {@code RecursiveRangeQueryIndex} that backs each sub-index.
+     * @throws UncheckedIOException if the port can't be bound.
+     */
+    public ShardServer(InetAddress address, int port,
+                       Function<VersionClock, ? extends RecursiveRangeQueryIndex<Object, Long>> implementation) {
+        this.index = new MapMultiCriteriaRangeQueryIndex<>(implementation);
+        try {
+            this.server = new ServerSocket(port, 0, address);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(String.format("Couldn't listen on %s:%d", address, port), ex);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2)
+            throw new IllegalArgumentException("Usage: ShardServer <port> [<bind address>]");
+        InetAddress address = args.length == 2 ? InetAddress.getByName(args[1]) : InetAddress.getLoopbackAddress();
+        ShardServer shard = new ShardServer(address, Integer.parseInt(args[0]), MultisetRecursiveRangeQueryIndex::new).start();
+        Runtime.getRuntime().addShutdownHook(new Thread(shard::close));
+    }
+
+    /**
+     * Start accepting connections, on a thread of its own.
+     *
+     * @return this instance.
+     */
+    public ShardServer start() {
+        new Thread(this::accept, "shard-" + getPort()).start();
+        log.info("Serving shard on port {}", getPort());
+        return this;
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stop accepting connections and close the open ones.
+     */
+    @Override
+    public void close() {
+        try {
+            server.close();
+            for (Socket client : clients)
+                client.close();
+        } catch (IOException ex) {
+            log.error("Couldn't close shard on port {}", getPort(), ex);
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket client = server.accept();
+                client.setTcpNoDelay(true);
+                clients.add(client);
+                new Thread(() -> serve(client), "shard-" + getPort() + "-" + client.getPort()).start();
+            } catch (IOException ex) {
+                if (!server.isClosed())
+                    log.error("Couldn't accept a connection", ex);
+            }
+        }
+    }
+
+    /**
+     * Answer the frames sent through a connection until it is closed.
+     */
+    private void serve(Socket client) {
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+        try (Socket socket = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                int length = in.readInt();
+                int operations = in.readInt();
+                if (length < 0 || length > ShardProtocol.MAX_FRAME_LENGTH || operations < 0) {
+                    log.warn("Closing the connection from {}, it sent a frame of {} bytes", client.getRemoteSocketAddress(), length);
+                    results.reset();
+                    error(results, new IllegalArgumentException(String.format("Frames are limited to %d bytes",
+                            ShardProtocol.MAX_FRAME_LENGTH)));
+                    out.writeByte(ShardProtocol.ILLEGAL_ARGUMENT);
+                    out.writeInt(results.size());
+                    results.writeTo(out);
+                    out.flush();
+                    return;
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                results.reset();
+                byte status = ShardProtocol.OK;
+                try {
+                    execute(new DataInputStream(new ByteArrayInputStream(frame)), operations, new DataOutputStream(results));
+                } catch (IllegalArgumentException | EOFException ex) {
+                    log.debug("Rejected a frame", ex);
+                    status = ShardProtocol.ILLEGAL_ARGUMENT;
+                    error(results, ex);
+                } catch (RuntimeException ex) {
+                    log.error("Couldn't execute a frame", ex);
+                    status = ShardProtocol.ILLEGAL_STATE;
+                    error(results, ex);
+                }
+                out.writeByte(status);
+                out.writeInt(results.size());
+                results.writeTo(out);
+                out.flush();
+            }
+        } catch (EOFException | SocketException ex) {
+            log.debug("Connection from {} closed", client.getRemoteSocketAddress());
+        } catch (IOException ex) {
+            log.error("Connection from {} failed", client.getRemoteSocketAddress(), ex);
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    /**
+     * Execute the operations of a frame, in order, writing their results.
+     */
+    private void execute(DataInputStream in, int operations, DataOutputStream results) throws IOException {
+        for (int i = 0; i < operations; i++) {
+            byte code = in.readByte();
+            String id = in.readUTF();
+            if (code == ShardProtocol.DEFINE) {
+                define(id);
+                continue;
+            }
+            Object[] keys = ShardProtocol.readKeys(in);
+            switch (code) {
+                case ShardProtocol.ADD:
+                    index.add(id, keys, in.readLong());
+                    break;
+                case ShardProtocol.ADD_MEASURED:
+                    index.add(id, keys, in.readLong(), in.readDouble());
+                    break;
+                case ShardProtocol.REMOVE:
+                    results.writeBoolean(index.remove(id, keys, in.readLong()));
+                    break;
+                case ShardProtocol.MOVE:
+                    results.writeBoolean(index.move(id, keys, in.readLong(), in.readLong()));
+                    break;
+                case ShardProtocol.QUERY:
+                    results.writeInt(index.query(id, keys, in.readLong(), in.readLong()));
+                    break;
+                case ShardProtocol.AGGREGATE:
+                    write(results, index.aggregate(id, keys, in.readLong(), in.readLong()));
+                    break;
+                case ShardProtocol.COUNT:
+                    results.writeInt(index.count(id, IndexKeySet.of(keys), in.readLong(), in.readLong()));
+                    break;
+                case ShardProtocol.ACCUMULATE:
+                    results.writeInt(index.accumulate(id, IndexKeySet.of(keys), in.readLong(), in.readLong()));
+                    break;
+                case ShardProtocol.QUERY_IN:
+                    write(results, index.queryIn(id, IndexKeySet.of(keys), in.readLong(), in.readLong()));
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown operation: %d", code));
+            }
+        }
+    }
+
+    /**
+     * Define a sub-index unless it is already defined, routers define every sub-index they use on every shard.
+     */
+    private synchronized void define(String id) {
+        if (defined.add(id))
+            index.define(id, COPY);
+    }
+
+    /**
+     * Replace the results of a frame by the message of the error that interrupted it.
+     */
+    private static void error(ByteArrayOutputStream results, Exception ex) {
+        results.reset();
+        byte[] message = String.valueOf(ex.getMessage()).getBytes(StandardCharsets.UTF_8);
+        results.write(message, 0, message.length);
+    }
+
+    private static void write(DataOutputStream out, Aggregate aggregate) throws IOException {
+        out.writeInt(aggregate.getCount());
+        if (aggregate.isEmpty())
+            return;
+        out.writeDouble(aggregate.getSum());
+        out.writeDouble(aggregate.getMin());
+        out.writeDouble(aggregate.getMax());
+    }
+
+    private static void write(DataOutputStream out, MultiKeyResponse response) throws IOException {
+        Map<List<Object>, Integer> counts = response.getCounts();
+        out.writeInt(counts.size());
+        for (Map.Entry<List<Object>, Integer> count : counts.entrySet()) {
+            ShardProtocol.writeKeys(out, count.getKey(), count.getKey().size());
+            out.writeInt(count.getValue());
+        }
+    }
+}